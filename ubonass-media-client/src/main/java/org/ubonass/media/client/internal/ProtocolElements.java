@@ -27,6 +27,26 @@ public class ProtocolElements {
 
     public static final String RESPONSE_OPERATION_METHOD = "operation";
 
+    /**
+     * Protocol revision implemented by the server. Clients announce theirs in
+     * keepLive or register and both use the lowest one. 1: invite targets and
+     * results are JSON strings. 2: they are JSON arrays. 3: the server may send
+     * its ICE candidates batched in iceCandidates notifications. 4: the server
+     * may send several notifications in one frame, as a JSON-RPC batch (a JSON
+     * array)
+     */
+    public static final int PROTOCOL_VERSION = 4;
+
+    /**
+     * First protocol revision whose clients accept iceCandidates
+     */
+    public static final int ICECANDIDATES_PROTOCOL_VERSION = 3;
+
+    /**
+     * First protocol revision whose clients accept JSON-RPC batches
+     */
+    public static final int BATCH_PROTOCOL_VERSION = 4;
+
     // ---------------------------- CLIENT REQUESTS -----------------------
 
     public static final String SENDMESSAGE_ROOM_METHOD = "sendMessage";
@@ -34,6 +54,7 @@ public class ProtocolElements {
 
     public static final String KEEPLIVE_METHOD = "keepLive";
     public static final String KEEPLIVE_USERID_PARAM = "userId";//user or id
+    public static final String KEEPLIVE_PROTOCOLVERSION_PARAM = "protocolVersion";//协议版本,默认1
 
     public static final String LEAVEROOM_METHOD = "leaveRoom";
 
@@ -90,6 +111,13 @@ public class ProtocolElements {
     public static final String ONICECANDIDATE_SDPMIDPARAM = "sdpMid";
     public static final String ONICECANDIDATE_SDPMLINEINDEX_PARAM = "sdpMLineIndex";
 
+    /**
+     * Several candidates of the client in one request, each one with the
+     * params of onIceCandidate
+     */
+    public static final String ONICECANDIDATES_METHOD = "onIceCandidates";
+    public static final String ONICECANDIDATES_CANDIDATES_PARAM = "candidates";
+
     public static final String CUSTOMREQUEST_METHOD = "customRequest";
 
     public static final String STREAMPROPERTYCHANGED_METHOD = "streamPropertyChanged";
@@ -175,6 +203,14 @@ public class ProtocolElements {
     public static final String ICECANDIDATE_SDPMID_PARAM = "sdpMid";
     public static final String ICECANDIDATE_SDPMLINEINDEX_PARAM = "sdpMLineIndex";
 
+    /**
+     * Candidates gathered by the server within a short window, sent together.
+     * endOfCandidates is true in the last one
+     */
+    public static final String ICECANDIDATES_METHOD = "iceCandidates";
+    public static final String ICECANDIDATES_CANDIDATES_PARAM = "candidates";
+    public static final String ICECANDIDATES_ENDOFCANDIDATES_PARAM = "endOfCandidates";
+
     public static final String RECORDINGSTARTED_METHOD = "recordingStarted";
     public static final String RECORDINGSTARTED_ID_PARAM = "id";
     public static final String RECORDINGSTARTED_NAME_PARAM = "name";
@@ -192,7 +228,9 @@ public class ProtocolElements {
     public static final String INVITED_METHOD = "invited";
     public static final String INVITED_USER_PARAM = "userId";//from user id
     public static final String INVITED_NUMBER_PARAM = "number"; //一共邀请几个
-    public static final String INVITED_TARGETS_PARAM = "targets";//目标集合
+    public static final String INVITED_TARGETS_PARAM = "targets";//目标集合,版本1为JSON字符串,版本2为JSON数组
+    public static final String INVITED_TARGETS_USER_PARAM = "userId";//目标用户ID
+    public static final String INVITED_TARGETS_STATE_PARAM = "state";//online or offline
     public static final String INVITED_TYPEMEDIA_PARAM = "typeOfMedia";//类型,是audio,video,all还是全部
     public static final String INVITED_SESSION_PARAM = "session";//是否使用房间
 
@@ -279,6 +317,7 @@ public class ProtocolElements {
 
     public static final String REGISTER_METHOD = "register";//去电由A发给服务端的请求
     public static final String REGISTER_USER_PARAM = "userId";//去电由A发给服务端的请求
+    public static final String REGISTER_PROTOCOLVERSION_PARAM = "protocolVersion";//协议版本,默认1
     public static final String REGISTER_TYPE_PARAM = "type";//服务器回复参数 rejected,accepted
     public static final String REGISTER_MESSAGE_PARAM = "message";//message 原因
     public static final String REGISTER_TYPE_REJECTED = "rejected";//
@@ -318,6 +357,15 @@ public class ProtocolElements {
     public static final String ONCALL_EVENT_REJECT_REASON = "reason";//拒接原因
     public static final String ONCALL_EVENT_HANGUP = "hangup";//对方挂断
     public static final String ONCALL_EVENT_CONNECTED = "connected";//已经建立通话
+    /**
+     * The call moved to another KMS, which answered the original SDP offer of
+     * the participant again. The answer comes in {@link #ONCALL_SDPANSWER_PARAM};
+     * the client sets its original offer as local description again (the
+     * connection is in stable state after the first answer) and then sets the
+     * new answer as remote description. The candidates of the new endpoint
+     * follow as in the first negotiation
+     */
+    public static final String ONCALL_EVENT_RENEGOTIATE = "renegotiate";//媒体服务器故障转移,携带新的sdpAnswer
 
     /**
      * 开始视频通话(服务器->B
@@ -16,17 +16,44 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 import org.springframework.core.env.Environment;
+import org.ubonass.media.server.call.CallReaper;
+import org.ubonass.media.server.call.CallRegistry;
+import org.ubonass.media.server.call.UserMediaSessionFactory;
+import org.ubonass.media.server.cluster.ClusterChannel;
+import org.ubonass.media.server.cluster.ClusterProtocol;
+import org.ubonass.media.server.cluster.ClusterRpcHandler;
+import org.ubonass.media.server.cluster.InMemoryUserLocationRegistry;
+import org.ubonass.media.server.cluster.JsonRpcClusterChannel;
+import org.ubonass.media.server.cluster.LoopbackClusterChannel;
+import org.ubonass.media.server.cluster.PresenceService;
+import org.ubonass.media.server.cluster.ShardedUserLocationRegistry;
+import org.ubonass.media.server.cluster.UserLocationRegistry;
+import org.ubonass.media.server.config.CloudMediaConfig;
 import org.ubonass.media.server.config.HttpHandshakeInterceptor;
 import org.ubonass.media.server.core.SessionManager;
 import org.ubonass.media.server.kurento.AutodiscoveryKurentoClientProvider;
 import org.ubonass.media.server.kurento.KurentoClientProvider;
 import org.ubonass.media.server.kurento.core.KurentoSessionManager;
+import org.ubonass.media.server.kurento.TrackType;
+import org.ubonass.media.server.kurento.kms.CompositeLoadManager;
 import org.ubonass.media.server.kurento.kms.FixedOneKmsManager;
+import org.ubonass.media.server.kurento.kms.Kms;
+import org.ubonass.media.server.kurento.kms.KmsManager;
+import org.ubonass.media.server.kurento.kms.KmsSelectionStrategy;
+import org.ubonass.media.server.kurento.kms.LoadManager;
+import org.ubonass.media.server.kurento.kms.MaxWebRtcLoadManager;
 import org.ubonass.media.server.rpc.CallRpcHandler;
 import org.ubonass.media.server.rpc.RpcHandler;
+import org.ubonass.media.server.rpc.RpcConnectionRegistry;
 import org.ubonass.media.server.rpc.RpcNotificationService;
+import org.ubonass.media.server.rpc.RpcOutboundQueue;
+import org.ubonass.media.server.rpc.RpcRequestExecutor;
+import org.ubonass.media.server.rpc.SignallingLogger;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Import({JsonRpcConfiguration.class})
 @SpringBootApplication
@@ -37,7 +64,13 @@ public class CloudMediaServerApplication implements JsonRpcConfigurer {
     @Autowired
     private Environment env;
 
+    @Autowired
+    private CloudMediaConfig config;
+
     public static final String KMSS_URIS_PROPERTY = "kms.uris";
+    public static final String KMSS_WEIGHTS_PROPERTY = "kms.weights";
+    public static final String CLUSTER_NODES_PROPERTY = "cluster.nodes";
+    public static final String RPC_LOG_SAMPLE_RATES_PROPERTY = "rpc.log.sample-rates";
 
     @Bean
     @ConditionalOnMissingBean
@@ -60,11 +93,43 @@ public class CloudMediaServerApplication implements JsonRpcConfigurer {
             logger.info("Using autodiscovery rules to locate KMS on every pipeline");
             return new AutodiscoveryKurentoClientProvider();
         } else {
-            logger.info("Configuring OpenVidu Server to use first of the following kmss: " + kmsWsUris);
-            return new FixedOneKmsManager(firstKmsWsUri);
+            logger.info("Configuring OpenVidu Server to use the following kmss: " + kmsWsUris);
+            FixedOneKmsManager kmsManager = new FixedOneKmsManager(kmsWsUris, config.getKmsConnectionsPerUri());
+            String weights = env.getProperty(KMSS_WEIGHTS_PROPERTY);
+            if (weights != null) {
+                List<Kms> kmss = kmsManager.getKmss();
+                JsonArray kmsWeights = parser.parse(weights).getAsJsonArray();
+                for (int i = 0; i < kmsWeights.size() && i < kmss.size(); i++) {
+                    kmss.get(i).setWeight(kmsWeights.get(i).getAsInt());
+                }
+            }
+            LoadManager loadManager = loadManager();
+            for (Kms kms : kmsManager.getKmss()) {
+                kms.setLoadManager(loadManager);
+            }
+            kmsManager.setSelectionStrategy(KmsSelectionStrategy.forName(config.getKmsSelection()));
+            kmsManager.startLoadReconciliation(config.getKmsLoadReconcilePeriod());
+            kmsManager.startHealthCheck(config.getKmsHealthCheckPeriod(), config.getKmsHealthCheckTimeout(),
+                    config.getKmsHealthCheckMaxFailures());
+            return kmsManager;
         }
     }
 
+    private LoadManager loadManager() {
+        switch (config.getKmsLoadManager().trim().toLowerCase()) {
+            case "max-webrtc":
+                return new MaxWebRtcLoadManager(config.getKmsLoadMaxPoints());
+            case "composite":
+                CompositeLoadManager loadManager = new CompositeLoadManager(config.getKmsLoadMaxCpu(),
+                        config.getKmsLoadMaxMemory(), config.getKmsLoadMaxPoints());
+                for (TrackType type : TrackType.values()) {
+                    loadManager.withPointsPerCall(type, config.getKmsLoadPoints(type));
+                }
+                return loadManager;
+            default:
+                throw new IllegalArgumentException("Unknown load manager '" + config.getKmsLoadManager() + "'");
+        }
+    }
 
     @Bean
     public RpcHandler rpcHandler() {
@@ -73,13 +138,120 @@ public class CloudMediaServerApplication implements JsonRpcConfigurer {
 
     @Bean
     public RpcHandler callRpcHandler() {
-        return new CallRpcHandler();
+        CallRpcHandler callRpcHandler = new CallRpcHandler();
+        KurentoClientProvider kcProvider = kmsManager();
+        if (kcProvider instanceof KmsManager) {
+            // Calls of a lost KMS are moved to another one
+            ((KmsManager) kcProvider).addKmsListener(callRpcHandler);
+        }
+        // Requests of users of other nodes about calls of this node
+        clusterChannel().register(ClusterProtocol.RELAY_REQUEST_METHOD, callRpcHandler::relayRequest);
+        callRpcHandler.startLeakCheck(config.getCallLeakCheckPeriod());
+        callReaper().setExpiryHandler(callRpcHandler::callExpired);
+        return callRpcHandler;
+    }
+
+    /**
+     * Calls of this node and their pipelines
+     */
+    @Bean
+    public CallRegistry callRegistry() {
+        return new CallRegistry(callReaper());
+    }
+
+    /**
+     * Ring, media connection and duration deadlines of the calls
+     */
+    @Bean
+    public CallReaper callReaper() {
+        return new CallReaper(config.getCallRingTimeout(), config.getCallIceConnectTimeout(),
+                config.getCallMaxDuration());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public ClusterChannel clusterChannel() {
+        String nodes = env.getProperty(CLUSTER_NODES_PROPERTY);
+        Map<String, String> nodeUris = new LinkedHashMap<>();
+        if (nodes != null && !nodes.trim().isEmpty()) {
+            for (Map.Entry<String, JsonElement> node : new JsonParser().parse(nodes).getAsJsonObject().entrySet()) {
+                nodeUris.put(node.getKey(), node.getValue().getAsString());
+            }
+        }
+        if (nodeUris.isEmpty()) {
+            return new LoopbackClusterChannel(config.getClusterNodeId());
+        }
+        if (config.getClusterSecret().isEmpty()) {
+            throw new IllegalStateException("Property cluster.secret is required when " + CLUSTER_NODES_PROPERTY
+                    + " is set");
+        }
+        return new JsonRpcClusterChannel(config.getClusterNodeId(), nodeUris, config.getClusterSecret(),
+                config.getClusterRequestTimeout());
+    }
+
+    @Bean
+    public PresenceService presenceService() {
+        return new PresenceService(clusterChannel(), userLocationRegistry(), rpcNotificationService(),
+                config.getClusterRequestTimeout());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public UserLocationRegistry userLocationRegistry() {
+        ClusterChannel clusterChannel = clusterChannel();
+        if (clusterChannel.getNodeIds().size() <= 1) {
+            return new InMemoryUserLocationRegistry();
+        }
+        return new ShardedUserLocationRegistry(clusterChannel, config.getClusterRequestTimeout(),
+                config.getClusterLocationCacheTtl(), config.getClusterLocationCacheSize());
     }
 
     @Bean
     @ConditionalOnMissingBean
     public RpcNotificationService rpcNotificationService() {
-        return new RpcNotificationService();
+        RpcNotificationService notificationService = !config.isRpcNotificationsQueued() ?
+                new RpcNotificationService() :
+                new RpcNotificationService(config.getRpcNotificationsQueueCapacity(),
+                        config.getRpcNotificationsBatchSize(),
+                        RpcOutboundQueue.OverflowPolicy.fromString(config.getRpcNotificationsOverflow()),
+                        config.getRpcNotificationsWriterThreads());
+        notificationService.setTransactionTimeout(config.getRpcTransactionTimeout());
+        notificationService.setSignallingLogger(signallingLogger());
+        return notificationService;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public SignallingLogger signallingLogger() {
+        String rates = env.getProperty(RPC_LOG_SAMPLE_RATES_PROPERTY);
+        Map<String, Integer> sampleRates = new HashMap<>();
+        if (rates != null && !rates.trim().isEmpty()) {
+            for (Map.Entry<String, JsonElement> rate : new JsonParser().parse(rates).getAsJsonObject().entrySet()) {
+                sampleRates.put(rate.getKey(), rate.getValue().getAsInt());
+            }
+        }
+        return new SignallingLogger(config.getRpcLogSampleRate(), sampleRates, config.isRpcLogRedactSdp());
+    }
+
+    /**
+     * Open connections of both endpoints, by private id and by user id
+     */
+    @Bean
+    public RpcConnectionRegistry rpcConnectionRegistry() {
+        return rpcNotificationService().getConnectionRegistry();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public RpcRequestExecutor rpcRequestExecutor() {
+        return new RpcRequestExecutor(RpcRequestExecutor.Mode.fromString(config.getRpcExecutorMode()),
+                config.getRpcExecutorThreads(), config.getRpcExecutorQueueCapacity());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public UserMediaSessionFactory userMediaSessionFactory() {
+        return new UserMediaSessionFactory(kmsManager(), config);
     }
 
     @Bean
@@ -95,6 +267,11 @@ public class CloudMediaServerApplication implements JsonRpcConfigurer {
                         /*.withInterceptors(new HttpHandshakeInterceptor())*/, "/media");
         registry.addHandler(callRpcHandler().withPingWatchdog(true)
                         /*.withInterceptors(new HttpHandshakeInterceptor())*/, "/call");
+        ClusterChannel clusterChannel = clusterChannel();
+        if (clusterChannel instanceof JsonRpcClusterChannel) {
+            registry.addHandler(new ClusterRpcHandler((JsonRpcClusterChannel) clusterChannel,
+                    config.getClusterSecret()), "/cluster");
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonObject;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Ends the calls that overstay one of their deadlines: ringing without an
+ * answer, accepted without their media getting connected, or lasting more
+ * than the maximum duration. Every call has at most one pending deadline at a
+ * time, kept in a timer wheel shared by all the calls, so a single thread
+ * handles any number of them.
+ */
+public class CallReaper {
+
+    private static final Logger log = LoggerFactory.getLogger(CallReaper.class);
+
+    private static final long TICK_MS = 100;
+
+    private final long ringTimeoutMs;
+    private final long iceConnectTimeoutMs;
+    private final long maxDurationMs;
+    private final HashedWheelTimer timer;
+    private volatile BiConsumer<CallSession, CallSession.EndReason> expiryHandler;
+
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param ringTimeoutMs       time a call may ring, 0 for no limit
+     * @param iceConnectTimeoutMs time an accepted call has to connect its
+     *                            media, 0 for no limit
+     * @param maxDurationMs       time a call may last since it was accepted, 0
+     *                            for no limit
+     */
+    public CallReaper(long ringTimeoutMs, long iceConnectTimeoutMs, long maxDurationMs) {
+        this.ringTimeoutMs = ringTimeoutMs;
+        this.iceConnectTimeoutMs = iceConnectTimeoutMs;
+        this.maxDurationMs = maxDurationMs;
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "call-reaper");
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.timer = new HashedWheelTimer(threadFactory, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param expiryHandler ends the expired call with the given reason. It runs
+     *                      in the timer thread, so it must hand blocking work
+     *                      to another thread
+     */
+    public void setExpiryHandler(BiConsumer<CallSession, CallSession.EndReason> expiryHandler) {
+        this.expiryHandler = expiryHandler;
+    }
+
+    /**
+     * The call starts ringing
+     */
+    public void ringing(CallSession call) {
+        if (ringTimeoutMs > 0) {
+            schedule(call, ringTimeoutMs, CallSession.EndReason.RING_TIMEOUT);
+        }
+    }
+
+    /**
+     * The call has been accepted, its media is being connected
+     */
+    public void accepted(CallSession call) {
+        call.setAcceptedAt(System.currentTimeMillis());
+        if (iceConnectTimeoutMs > 0) {
+            schedule(call, iceConnectTimeoutMs, CallSession.EndReason.ICE_TIMEOUT);
+        } else {
+            scheduleMaxDuration(call);
+        }
+    }
+
+    /**
+     * The media of an accepted call has moved to another KMS and is being
+     * connected again. Its maximum duration is still counted since it was
+     * accepted
+     */
+    public void mediaReplaced(CallSession call) {
+        if (iceConnectTimeoutMs > 0) {
+            schedule(call, iceConnectTimeoutMs, CallSession.EndReason.ICE_TIMEOUT);
+        }
+    }
+
+    /**
+     * The call has been terminated, its deadline is cancelled
+     */
+    public void terminated(CallSession call) {
+        cancel(call.setDeadline(null));
+    }
+
+    private void scheduleMaxDuration(CallSession call) {
+        if (maxDurationMs <= 0) {
+            terminated(call);
+            return;
+        }
+        long remaining = call.getAcceptedAt() + maxDurationMs - System.currentTimeMillis();
+        schedule(call, Math.max(remaining, 0), CallSession.EndReason.MAX_DURATION);
+    }
+
+    private void schedule(final CallSession call, long delayMs, final CallSession.EndReason reason) {
+        pending.incrementAndGet();
+        Timeout deadline = timer.newTimeout(t -> expire(call, t, reason), delayMs, TimeUnit.MILLISECONDS);
+        cancel(call.setDeadline(deadline));
+        if (call.isTerminated()) {
+            // Terminated while being scheduled
+            cancel(call.setDeadline(null));
+        }
+    }
+
+    private void cancel(Timeout deadline) {
+        if (deadline != null && deadline.cancel()) {
+            pending.decrementAndGet();
+        }
+    }
+
+    private void expire(CallSession call, Timeout deadline, CallSession.EndReason reason) {
+        pending.decrementAndGet();
+        if (!call.clearDeadline(deadline) || call.isTerminated()) {
+            // Replaced by a later deadline, or the call ended in the meantime
+            return;
+        }
+        switch (reason) {
+            case RING_TIMEOUT:
+                if (call.getState() != CallSession.State.RINGING) {
+                    return;
+                }
+                break;
+            case ICE_TIMEOUT:
+                if (call.isMediaConnected()) {
+                    // Connected in time, next deadline is the end of the call
+                    scheduleMaxDuration(call);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        expired.increment();
+        log.info("Call {} from '{}' to '{}' expired: {}", call.getSessionId(), call.getCallerId(),
+                call.getCalleeId(), reason);
+        BiConsumer<CallSession, CallSession.EndReason> handler = this.expiryHandler;
+        if (handler == null) {
+            return;
+        }
+        try {
+            handler.accept(call, reason);
+        } catch (Exception e) {
+            log.error("Error expiring call {}", call.getSessionId(), e);
+        }
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("pending", getPending());
+        json.addProperty("expired", getExpired());
+        json.addProperty("ringTimeoutMs", ringTimeoutMs);
+        json.addProperty("iceConnectTimeoutMs", iceConnectTimeoutMs);
+        json.addProperty("maxDurationMs", maxDurationMs);
+        return json;
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+}
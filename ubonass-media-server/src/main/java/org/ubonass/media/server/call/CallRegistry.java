@@ -0,0 +1,243 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Calls handled by this node, by session id. Every {@link UserMediaSession}
+ * given to a call is released here when the call is terminated, whatever the
+ * reason, so the number of live pipelines matches the number of calls.
+ */
+public class CallRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(CallRegistry.class);
+
+    private final ConcurrentMap<String, CallSession> calls = new ConcurrentHashMap<>();
+
+    private CallReaper reaper;
+
+    private final IceCandidateBuffer.Metrics candidateMetrics = new IceCandidateBuffer.Metrics();
+
+    private final AtomicInteger livePipelines = new AtomicInteger();
+    private final LongAdder releasedPipelines = new LongAdder();
+    private final LongAdder leakedPipelines = new LongAdder();
+    private final LongAdder[] terminated = new LongAdder[CallSession.EndReason.values().length];
+
+    public CallRegistry() {
+        for (int i = 0; i < terminated.length; i++) {
+            terminated[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Calls are given deadlines by the reaper while they are registered
+     */
+    public CallRegistry(CallReaper reaper) {
+        this();
+        this.reaper = reaper;
+    }
+
+    /**
+     * Registers a ringing call, which becomes the owner of the media session
+     *
+     * @return the new call, null if there is already one with the same id (the
+     * media session is released then)
+     */
+    public CallSession start(String sessionId, String callerId, String calleeId, UserMediaSession mediaSession) {
+        CallSession call = new CallSession(sessionId, callerId, calleeId, mediaSession);
+        if (calls.putIfAbsent(sessionId, call) != null) {
+            mediaSession.release();
+            return null;
+        }
+        livePipelines.incrementAndGet();
+        if (reaper != null) {
+            reaper.ringing(call);
+        }
+        return call;
+    }
+
+    /**
+     * Moves a ringing call to ACCEPTED
+     *
+     * @return false if the call was not ringing
+     */
+    public boolean accept(CallSession call) {
+        if (!call.transition(CallSession.State.RINGING, CallSession.State.ACCEPTED)) {
+            return false;
+        }
+        if (reaper != null) {
+            reaper.accepted(call);
+        }
+        return true;
+    }
+
+    /**
+     * @return the call, null if it does not exist or was terminated
+     */
+    public CallSession get(String sessionId) {
+        return sessionId != null ? calls.get(sessionId) : null;
+    }
+
+    public Collection<CallSession> getCalls() {
+        return Collections.unmodifiableCollection(calls.values());
+    }
+
+    /**
+     * Terminates the call and releases its media session
+     *
+     * @return the call, null if it did not exist or was already terminated
+     */
+    public CallSession terminate(String sessionId, CallSession.EndReason reason) {
+        return terminate(sessionId, reason, null);
+    }
+
+    /**
+     * Terminates the call only if it is in the given state
+     *
+     * @param from null terminates the call from any state
+     * @return the call, null if it did not exist or was not in the state
+     */
+    public CallSession terminate(String sessionId, CallSession.EndReason reason, CallSession.State from) {
+        CallSession call = get(sessionId);
+        if (call == null) {
+            return null;
+        }
+        UserMediaSession mediaSession = call.terminate(reason, from);
+        if (call.isTerminated()) {
+            calls.remove(sessionId, call);
+            if (reaper != null) {
+                reaper.terminated(call);
+            }
+        }
+        if (mediaSession == null) {
+            // Terminated concurrently, or no longer in the given state
+            return null;
+        }
+        release(mediaSession);
+        terminated[reason.ordinal()].increment();
+        log.debug("Call {} from '{}' to '{}' terminated: {}", sessionId, call.getCallerId(), call.getCalleeId(),
+                reason);
+        return call;
+    }
+
+    /**
+     * Moves the call to another media session. The current one is released. An
+     * accepted call has to connect its media again in time
+     *
+     * @return false if the call was terminated in the meantime, the
+     * replacement is released then
+     */
+    public boolean replaceMediaSession(CallSession call, UserMediaSession current, UserMediaSession replacement) {
+        if (!call.replaceMediaSession(current, replacement)) {
+            replacement.release();
+            return false;
+        }
+        current.release();
+        if (reaper != null && call.getState() != CallSession.State.RINGING) {
+            reaper.mediaReplaced(call);
+        }
+        return true;
+    }
+
+    /**
+     * Terminates the calls no longer referenced by their participants, which
+     * would otherwise keep their pipeline until the KMS restarts
+     *
+     * @param referenced whether a call is still referenced
+     * @return the calls terminated
+     */
+    public List<CallSession> terminateLeaked(Predicate<CallSession> referenced) {
+        List<CallSession> leaked = new ArrayList<>();
+        for (CallSession call : calls.values()) {
+            if (!referenced.test(call) && terminate(call.getSessionId(), CallSession.EndReason.LEAKED) != null) {
+                leakedPipelines.increment();
+                leaked.add(call);
+            }
+        }
+        if (!leaked.isEmpty()) {
+            log.warn("Released the pipelines of {} calls no longer referenced by their participants", leaked.size());
+        }
+        return leaked;
+    }
+
+    private void release(UserMediaSession mediaSession) {
+        livePipelines.decrementAndGet();
+        releasedPipelines.increment();
+        mediaSession.release();
+    }
+
+    public int size() {
+        return calls.size();
+    }
+
+    /**
+     * @return counters of the ICE candidates received from the participants
+     */
+    public IceCandidateBuffer.Metrics getCandidateMetrics() {
+        return candidateMetrics;
+    }
+
+    public int getLivePipelines() {
+        return livePipelines.get();
+    }
+
+    public long getLeakedPipelines() {
+        return leakedPipelines.sum();
+    }
+
+    public JsonObject toJson() {
+        int[] byState = new int[CallSession.State.values().length];
+        for (CallSession call : calls.values()) {
+            byState[call.getState().ordinal()]++;
+        }
+        JsonObject json = new JsonObject();
+        JsonObject states = new JsonObject();
+        for (CallSession.State state : CallSession.State.values()) {
+            if (state != CallSession.State.TERMINATED) {
+                states.addProperty(state.name().toLowerCase(), byState[state.ordinal()]);
+            }
+        }
+        json.add("calls", states);
+        json.addProperty("livePipelines", livePipelines.get());
+        json.addProperty("releasedPipelines", releasedPipelines.sum());
+        json.addProperty("leakedPipelines", leakedPipelines.sum());
+        JsonObject reasons = new JsonObject();
+        for (CallSession.EndReason reason : CallSession.EndReason.values()) {
+            reasons.addProperty(reason.name().toLowerCase(), terminated[reason.ordinal()].sum());
+        }
+        json.add("terminated", reasons);
+        json.add("iceCandidates", candidateMetrics.toJson());
+        if (reaper != null) {
+            json.add("deadlines", reaper.toJson());
+        }
+        return json;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonObject;
+
+import io.netty.util.Timeout;
+import org.ubonass.media.server.kurento.TrackType;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One-to-one call, owner of its {@link UserMediaSession}. A call moves
+ * forward only: RINGING, ACCEPTED, CONNECTED and finally TERMINATED, which can
+ * be reached from any state and releases the media session. Calls are
+ * created and terminated through the {@link CallRegistry}.
+ */
+public class CallSession {
+
+    public enum State {
+        RINGING, ACCEPTED, CONNECTED, TERMINATED
+    }
+
+    public enum EndReason {
+        HANGUP, REJECTED, DISCONNECTED, RING_TIMEOUT, ICE_TIMEOUT, MAX_DURATION, MEDIA_ERROR, LEAKED
+    }
+
+    private final String sessionId;
+    private final String callerId;
+    private final String calleeId;
+    private final TrackType media;
+    private final long createdAt = System.currentTimeMillis();
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.RINGING);
+    private volatile EndReason endReason;
+    private UserMediaSession mediaSession;
+    private volatile long acceptedAt;
+    private volatile boolean callerMediaConnected;
+    private volatile boolean calleeMediaConnected;
+
+    /**
+     * Next deadline of the call, set by the {@link CallReaper}
+     */
+    private final AtomicReference<Timeout> deadline = new AtomicReference<>();
+
+    CallSession(String sessionId, String callerId, String calleeId, UserMediaSession mediaSession) {
+        this.sessionId = sessionId;
+        this.callerId = callerId;
+        this.calleeId = calleeId;
+        this.media = mediaSession.getType();
+        this.mediaSession = mediaSession;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getCallerId() {
+        return callerId;
+    }
+
+    public String getCalleeId() {
+        return calleeId;
+    }
+
+    /**
+     * @return media the pipeline of the call is built for
+     */
+    public TrackType getMedia() {
+        return media;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return why the call was terminated, null while it is not
+     */
+    public EndReason getEndReason() {
+        return endReason;
+    }
+
+    public boolean isTerminated() {
+        return state.get() == State.TERMINATED;
+    }
+
+    /**
+     * @return the user on the other side of the call, null if the given user
+     * is not in it
+     */
+    public String getPeer(String userId) {
+        if (callerId.equals(userId)) {
+            return calleeId;
+        }
+        return calleeId.equals(userId) ? callerId : null;
+    }
+
+    /**
+     * Moves the call forward from the given state
+     *
+     * @return false if the call was not in the given state
+     */
+    public boolean transition(State from, State to) {
+        return to != State.TERMINATED && to.ordinal() > from.ordinal() && state.compareAndSet(from, to);
+    }
+
+    /**
+     * @return time the call was accepted, 0 if it has not been
+     */
+    public long getAcceptedAt() {
+        return acceptedAt;
+    }
+
+    void setAcceptedAt(long acceptedAt) {
+        this.acceptedAt = acceptedAt;
+    }
+
+    /**
+     * The media of one side is flowing through its endpoint
+     */
+    public void setMediaConnected(boolean caller) {
+        if (caller) {
+            callerMediaConnected = true;
+        } else {
+            calleeMediaConnected = true;
+        }
+    }
+
+    /**
+     * @return whether the media of both sides is flowing
+     */
+    public boolean isMediaConnected() {
+        return callerMediaConnected && calleeMediaConnected;
+    }
+
+    public synchronized UserMediaSession getMediaSession() {
+        return mediaSession;
+    }
+
+    /**
+     * Replaces the media session of a call that has not been terminated, when
+     * it is moved to another KMS
+     *
+     * @return false if the call was terminated or its session already replaced
+     */
+    synchronized boolean replaceMediaSession(UserMediaSession current, UserMediaSession replacement) {
+        if (isTerminated() || mediaSession != current) {
+            return false;
+        }
+        mediaSession = replacement;
+        // The media of the new endpoints has to connect again
+        callerMediaConnected = false;
+        calleeMediaConnected = false;
+        return true;
+    }
+
+    /**
+     * @return the deadline replaced
+     */
+    Timeout setDeadline(Timeout deadline) {
+        return this.deadline.getAndSet(deadline);
+    }
+
+    /**
+     * Removes the given deadline, once it has expired
+     *
+     * @return false if it had been replaced by another one
+     */
+    boolean clearDeadline(Timeout deadline) {
+        return this.deadline.compareAndSet(deadline, null);
+    }
+
+    /**
+     * Terminates the call once
+     *
+     * @param from state the call must be in, null for any
+     * @return the media session to release, null if the call was already
+     * terminated or not in the given state
+     */
+    synchronized UserMediaSession terminate(EndReason reason, State from) {
+        if (from != null ? !state.compareAndSet(from, State.TERMINATED)
+                : state.getAndSet(State.TERMINATED) == State.TERMINATED) {
+            return null;
+        }
+        endReason = reason;
+        UserMediaSession session = mediaSession;
+        mediaSession = null;
+        return session;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("sessionId", sessionId);
+        json.addProperty("callerId", callerId);
+        json.addProperty("calleeId", calleeId);
+        json.addProperty("media", media.name());
+        json.addProperty("state", state.get().name());
+        json.addProperty("createdAt", createdAt);
+        if (endReason != null) {
+            json.addProperty("endReason", endReason.name());
+        }
+        return json;
+    }
+}
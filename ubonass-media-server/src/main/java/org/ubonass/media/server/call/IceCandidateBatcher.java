@@ -0,0 +1,88 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.kurento.client.IceCandidate;
+import org.kurento.jsonrpc.JsonUtils;
+import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.rpc.RpcNotificationService;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the candidates gathered by the endpoint of one participant within a
+ * short window and sends them in a single iceCandidates notification. The
+ * last notification, sent when gathering is done, carries the end of
+ * candidates marker.
+ */
+public class IceCandidateBatcher {
+
+    private final String participantPrivateId;
+    private final RpcNotificationService notificationService;
+    private final ScheduledExecutorService scheduler;
+    private final long windowMs;
+
+    private JsonArray pending = new JsonArray();
+    private boolean flushScheduled = false;
+    private boolean done = false;
+
+    public IceCandidateBatcher(String participantPrivateId, RpcNotificationService notificationService,
+                               ScheduledExecutorService scheduler, long windowMs) {
+        this.participantPrivateId = participantPrivateId;
+        this.notificationService = notificationService;
+        this.scheduler = scheduler;
+        this.windowMs = windowMs;
+    }
+
+    public synchronized void add(IceCandidate candidate) {
+        if (done) {
+            return;
+        }
+        pending.add(JsonUtils.toJsonObject(candidate));
+        if (!flushScheduled) {
+            flushScheduled = true;
+            scheduler.schedule(() -> flush(false), windowMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the pending candidates, if any, with the end of candidates marker
+     */
+    public void gatheringDone() {
+        flush(true);
+    }
+
+    /**
+     * Sends while holding the lock so batches keep their order
+     */
+    private synchronized void flush(boolean endOfCandidates) {
+        if (done || (!endOfCandidates && pending.size() == 0)) {
+            return;
+        }
+        JsonObject params = new JsonObject();
+        params.add(ProtocolElements.ICECANDIDATES_CANDIDATES_PARAM, pending);
+        params.addProperty(ProtocolElements.ICECANDIDATES_ENDOFCANDIDATES_PARAM, endOfCandidates);
+        pending = new JsonArray();
+        flushScheduled = false;
+        done = endOfCandidates;
+        notificationService.sendNotification(participantPrivateId, ProtocolElements.ICECANDIDATES_METHOD, params);
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonObject;
+import org.kurento.client.Continuation;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ICE candidates sent by one participant during one call. Candidates received
+ * before the endpoint of the participant exists are held, and all of them are
+ * given to the endpoint when it is attached. They are kept until the call
+ * ends, so they can be given again to a new endpoint if the call is moved to
+ * another KMS.
+ * <p>
+ * Adding and attaching may run in different threads without locks: each
+ * candidate records the endpoint it was last given to, and only the thread
+ * that changes it hands the candidate over, so no candidate is lost or given
+ * twice to the same endpoint. Repeated candidates, and those beyond the
+ * capacity, are dropped.
+ */
+public class IceCandidateBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(IceCandidateBuffer.class);
+
+    public static final int DEFAULT_CAPACITY = 100;
+
+    /**
+     * Counters shared by the buffers of all the participants
+     */
+    public static class Metrics {
+
+        private final LongAdder received = new LongAdder();
+        private final LongAdder buffered = new LongAdder();
+        private final LongAdder flushed = new LongAdder();
+        private final LongAdder forwarded = new LongAdder();
+        private final LongAdder duplicated = new LongAdder();
+        private final LongAdder overflowed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("received", received.sum());
+            json.addProperty("buffered", buffered.sum());
+            json.addProperty("flushed", flushed.sum());
+            json.addProperty("forwarded", forwarded.sum());
+            json.addProperty("droppedDuplicated", duplicated.sum());
+            json.addProperty("droppedOverflow", overflowed.sum());
+            json.addProperty("failed", failed.sum());
+            return json;
+        }
+    }
+
+    private static class Entry {
+
+        private final IceCandidate candidate;
+        private final AtomicReference<WebRtcEndpoint> givenTo = new AtomicReference<>();
+
+        private Entry(IceCandidate candidate) {
+            this.candidate = candidate;
+        }
+    }
+
+    private final int capacity;
+    private final Metrics metrics;
+
+    private final Set<String> keys = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile WebRtcEndpoint endpoint;
+
+    public IceCandidateBuffer() {
+        this(DEFAULT_CAPACITY, new Metrics());
+    }
+
+    /**
+     * @param capacity maximum candidates kept
+     */
+    public IceCandidateBuffer(int capacity, Metrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return an empty buffer with the same capacity and counters, for the
+     * next call
+     */
+    public IceCandidateBuffer renew() {
+        return new IceCandidateBuffer(capacity, metrics);
+    }
+
+    /**
+     * Gives the candidate to the endpoint if it is attached, or holds it until
+     * it is
+     *
+     * @return false if the candidate was dropped
+     */
+    public boolean add(IceCandidate candidate) {
+        metrics.received.increment();
+        String key = candidate.getSdpMid() + '|' + candidate.getSdpMLineIndex() + '|' + candidate.getCandidate();
+        if (!keys.add(key)) {
+            metrics.duplicated.increment();
+            return false;
+        }
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            keys.remove(key);
+            metrics.overflowed.increment();
+            log.debug("ICE candidate dropped, {} candidates already received", capacity);
+            return false;
+        }
+        Entry entry = new Entry(candidate);
+        entries.add(entry);
+        // Read after the entry is visible, so either this thread or attach gives it
+        WebRtcEndpoint current = this.endpoint;
+        if (current != null) {
+            give(entry, current, metrics.forwarded);
+        } else {
+            metrics.buffered.increment();
+        }
+        return true;
+    }
+
+    /**
+     * Attaches the endpoint and gives it every candidate received so far
+     */
+    public void attach(WebRtcEndpoint endpoint) {
+        this.endpoint = endpoint;
+        if (endpoint == null) {
+            return;
+        }
+        for (Entry entry : entries) {
+            give(entry, endpoint, metrics.flushed);
+        }
+    }
+
+    private void give(Entry entry, WebRtcEndpoint target, LongAdder counter) {
+        WebRtcEndpoint previous = entry.givenTo.get();
+        if (previous == target || !entry.givenTo.compareAndSet(previous, target)) {
+            // Already given, or being given by another thread
+            return;
+        }
+        counter.increment();
+        // Not waiting for the KMS
+        target.addIceCandidate(entry.candidate, new Continuation<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+            }
+
+            @Override
+            public void onError(Throwable cause) {
+                metrics.failed.increment();
+                log.warn("Error adding ICE candidate {}: {}", entry.candidate.getCandidate(), cause.getMessage());
+            }
+        });
+    }
+
+    public WebRtcEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.call;
+
+import org.ubonass.media.server.rpc.RemoteRpcConnection;
+
+/**
+ * Stand-in for a user connected to another signalling node, taking part in a
+ * call handled by this node. Its notifications are forwarded to that node.
+ */
+public class RemoteUserRpcConnection extends UserRpcConnection implements RemoteRpcConnection {
+
+    private final String nodeId;
+    private final UserRpcRegistry registry;
+
+    RemoteUserRpcConnection(String userId, String nodeId, UserRpcRegistry registry) {
+        super("remote:" + nodeId + ":" + userId, userId);
+        this.nodeId = nodeId;
+        this.registry = registry;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void forwardNotification(String method, Object params) {
+        registry.forwardNotification(this, method, params);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the notifications of a participant, such as the candidates gathered
+ * by its endpoint, until its SDP answer has been sent, since the client cannot
+ * use them before. Held notifications are then sent in the order they came.
+ */
+public class SdpAnswerGate {
+
+    private List<Runnable> held = new ArrayList<>();
+
+    /**
+     * Runs the task now if the answer has been sent, or once it is
+     */
+    public synchronized void run(Runnable task) {
+        if (held != null) {
+            held.add(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * The answer has been sent, runs the held tasks
+     */
+    public synchronized void open() {
+        if (held == null) {
+            return;
+        }
+        List<Runnable> tasks = held;
+        held = null;
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return held == null;
+    }
+}
@@ -1,33 +1,220 @@
 package org.ubonass.media.server.call;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
 import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+import org.ubonass.media.server.kurento.TrackType;
+import org.ubonass.media.server.kurento.kms.Kms;
+import org.ubonass.media.server.kurento.kms.KmsLoadTracker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class UserMediaSession {
 
-    private MediaPipeline pipeline;
-    private WebRtcEndpoint callerWebRtcEp;
-    private WebRtcEndpoint calleeWebRtcEp;
+    private static final Logger log = LoggerFactory.getLogger(UserMediaSession.class);
+
+    private static final int NUM_WEBRTC_ENDPOINTS = 2;
+
+    private volatile MediaPipeline pipeline;
+    private volatile WebRtcEndpoint callerWebRtcEp;
+    private volatile WebRtcEndpoint calleeWebRtcEp;
+    private volatile boolean released = false;
+    private boolean pipelineReleased = false;
+    private CompletableFuture<Void> pipelineRelease;
+    private Runnable releaseCallback;
+
+    /**
+     * KMS hosting the pipeline and its load counters, may be null
+     */
+    private final Kms kms;
+    private final KurentoClient kurento;
+    private final KmsLoadTracker loadTracker;
+    private boolean tracked = false;
+
+    /**
+     * Media the endpoints are connected for, and maximum video bandwidth in
+     * kbps of each endpoint, 0 for the KMS default
+     */
+    private final TrackType type;
+    private final int maxVideoBandwidth;
+
+    /**
+     * Completed once the pipeline and both connected endpoints exist in the KMS
+     */
+    private final CompletableFuture<UserMediaSession> ready = new CompletableFuture<>();
+
+    /**
+     * Answer to the offer of the caller, claimed by whichever starts first:
+     * the early offer while the callee is ringing or the acceptance of the
+     * call, which processes the offer again if the early one failed.
+     * Candidates of the caller found before it is accepted are held by the
+     * gate until the answer is sent
+     */
+    private final AtomicReference<CompletableFuture<String>> callerAnswer = new AtomicReference<>();
+    private final SdpAnswerGate callerAnswerGate = new SdpAnswerGate();
 
     /*public String getSessionId() {
         return sessionId;
     }*/
 
-    public UserMediaSession(/*String sessionId,*/KurentoClient kurento) {
-        //this.sessionId = sessionId;
+    /**
+     * @param type              media the endpoints are connected for
+     * @param maxVideoBandwidth maximum video bandwidth in kbps of each
+     *                          endpoint, 0 for the KMS default
+     */
+    public UserMediaSession(KurentoClient kurento, TrackType type, int maxVideoBandwidth) {
+        this(null, kurento, null, type, maxVideoBandwidth);
+        build();
+    }
+
+    /**
+     * @see #UserMediaSession(KurentoClient, TrackType, int)
+     */
+    public UserMediaSession(Kms kms, TrackType type, int maxVideoBandwidth) {
+        this(kms, kms.getKurentoClient(), kms.getLoadTracker(), type, maxVideoBandwidth);
+        build();
+    }
+
+    private UserMediaSession(Kms kms, KurentoClient kurento, KmsLoadTracker loadTracker, TrackType type,
+                             int maxVideoBandwidth) {
+        this.kms = kms;
+        this.kurento = kurento;
+        this.loadTracker = loadTracker;
+        this.type = type;
+        this.maxVideoBandwidth = maxVideoBandwidth;
+    }
+
+    /**
+     * Builds the pipeline and its endpoints, waiting for the KMS
+     */
+    private void build() {
         try {
-            this.pipeline = kurento.createMediaPipeline();
+            this.pipeline = this.kurento.createMediaPipeline();
             this.callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
             this.calleeWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
 
-            this.callerWebRtcEp.connect(this.calleeWebRtcEp);
+            if (limitsVideo()) {
+                for (WebRtcEndpoint endpoint : new WebRtcEndpoint[]{callerWebRtcEp, calleeWebRtcEp}) {
+                    endpoint.setMaxVideoRecvBandwidth(maxVideoBandwidth);
+                    endpoint.setMaxVideoSendBandwidth(maxVideoBandwidth);
+                }
+            }
+            MediaType mediaType = mediaType(type);
+            if (mediaType == null) {
+                this.callerWebRtcEp.connect(this.calleeWebRtcEp);
+
+                this.calleeWebRtcEp.connect(this.callerWebRtcEp);
+            } else {
+                this.callerWebRtcEp.connect(this.calleeWebRtcEp, mediaType);
+                this.calleeWebRtcEp.connect(this.callerWebRtcEp, mediaType);
+            }
+            this.track();
+            this.ready.complete(this);
+        } catch (Throwable t) {
+            this.releasePipeline();
+            this.ready.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Starts building the pipeline and returns without waiting for the KMS. Both
+     * endpoints are created in parallel once the pipeline exists, and then
+     * connected to each other, also in parallel. Use {@link #awaitReady(long)}
+     * or {@link #whenReady()} before accessing the endpoints
+     *
+     * @param type              media the endpoints are connected for
+     * @param maxVideoBandwidth maximum video bandwidth in kbps of each
+     *                          endpoint, 0 for the KMS default
+     */
+    public static UserMediaSession createAsync(KurentoClient kurento, TrackType type, int maxVideoBandwidth) {
+        return createAsync(null, kurento, null, type, maxVideoBandwidth);
+    }
+
+    /**
+     * Builds the session in the given KMS, updating its load counters
+     *
+     * @see #createAsync(KurentoClient, TrackType, int)
+     */
+    public static UserMediaSession createAsync(Kms kms, TrackType type, int maxVideoBandwidth) {
+        return createAsync(kms, kms.getKurentoClient(), kms.getLoadTracker(), type, maxVideoBandwidth);
+    }
 
-            this.calleeWebRtcEp.connect(this.callerWebRtcEp);
+    private static UserMediaSession createAsync(Kms kms, KurentoClient kurento, KmsLoadTracker loadTracker,
+                                                TrackType type, int maxVideoBandwidth) {
+        final UserMediaSession session = new UserMediaSession(kms, kurento, loadTracker, type, maxVideoBandwidth);
+        CompletableFuture<MediaPipeline> pipelineFuture = new CompletableFuture<>();
+        try {
+            kurento.createMediaPipeline(continuation(pipelineFuture));
         } catch (Throwable t) {
-            if (this.pipeline != null) {
-                pipeline.release();
+            pipelineFuture.completeExceptionally(t);
+        }
+        pipelineFuture.thenCompose(pipeline -> {
+            session.pipeline = pipeline;
+            return buildEndpoint(pipeline).thenCombine(buildEndpoint(pipeline), (callerEp, calleeEp) -> {
+                session.callerWebRtcEp = callerEp;
+                session.calleeWebRtcEp = calleeEp;
+                return session;
+            });
+        }).thenCompose(s -> CompletableFuture.allOf(
+                connect(s.callerWebRtcEp, s.calleeWebRtcEp, mediaType(type)),
+                connect(s.calleeWebRtcEp, s.callerWebRtcEp, mediaType(type)),
+                s.limitVideo(s.callerWebRtcEp),
+                s.limitVideo(s.calleeWebRtcEp))
+        ).whenComplete((v, t) -> {
+            if (t != null) {
+                log.error("Error building media pipeline", t);
+                session.releasePipeline();
+                session.ready.completeExceptionally(t);
+            } else if (session.released) {
+                // Released while it was being built
+                session.releasePipeline();
+                session.ready.completeExceptionally(new IllegalStateException("Session released"));
+            } else {
+                session.track();
+                session.ready.complete(session);
             }
+        });
+        return session;
+    }
+
+    public CompletableFuture<UserMediaSession> whenReady() {
+        return ready;
+    }
+
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Waits until the pipeline is built
+     *
+     * @param timeoutMs maximum time to wait, in milliseconds
+     * @throws CloudMediaException if the pipeline could not be built in time
+     */
+    public UserMediaSession awaitReady(long timeoutMs) {
+        try {
+            return ready.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "Interrupted while waiting for the media pipeline");
+        } catch (ExecutionException e) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "Error building the media pipeline: " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "Media pipeline not ready after " + timeoutMs + " ms");
         }
     }
 
@@ -39,12 +226,158 @@ public class UserMediaSession {
         return calleeWebRtcEp.processOffer(sdpOffer);
     }
 
+    /**
+     * Processes the offer of the caller without waiting for the KMS
+     *
+     * @return completed with the SDP answer
+     */
+    public CompletableFuture<String> processCallerOffer(String sdpOffer) {
+        return processOffer(callerWebRtcEp, sdpOffer);
+    }
+
+    /**
+     * Processes the offer of the callee without waiting for the KMS
+     *
+     * @return completed with the SDP answer
+     */
+    public CompletableFuture<String> processCalleeOffer(String sdpOffer) {
+        return processOffer(calleeWebRtcEp, sdpOffer);
+    }
+
+    /**
+     * Claims the processing of the offer of the caller
+     *
+     * @param answer completed with the answer by the claimer
+     * @return the answer of an earlier claim, null if this one succeeded
+     */
+    public CompletableFuture<String> claimCallerAnswer(CompletableFuture<String> answer) {
+        return callerAnswer.compareAndSet(null, answer) ? null : callerAnswer.get();
+    }
+
+    public SdpAnswerGate getCallerAnswerGate() {
+        return callerAnswerGate;
+    }
+
+    /**
+     * Starts gathering the candidates of the endpoint without waiting for the
+     * KMS
+     */
+    public static CompletableFuture<Void> gatherCandidates(WebRtcEndpoint endpoint) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            endpoint.gatherCandidates(continuation(future));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    private static CompletableFuture<String> processOffer(WebRtcEndpoint endpoint, String sdpOffer) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        try {
+            endpoint.processOffer(sdpOffer, continuation(future));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    /**
+     * @return media the endpoints are connected for
+     */
+    public TrackType getType() {
+        return type;
+    }
+
+    /**
+     * @return the KMS hosting the pipeline, null if unknown
+     */
+    public Kms getKms() {
+        return kms;
+    }
+
+    /**
+     * @return the client the pipeline is created through
+     */
+    public KurentoClient getKurentoClient() {
+        return kurento;
+    }
+
+    /**
+     * Runs the given callback once, after the session is released and its
+     * pipeline (if it was created) is released in the KMS
+     */
+    public void setReleaseCallback(Runnable releaseCallback) {
+        this.releaseCallback = releaseCallback;
+    }
+
     public void release() {
-        if (pipeline != null) {
-            pipeline.release();
+        released = true;
+        // A pipeline being built is released once it exists
+        ready.handle((s, t) -> releasePipeline())
+                .thenCompose(release -> release)
+                .whenComplete((v, t) -> runReleaseCallback());
+    }
+
+    private synchronized void runReleaseCallback() {
+        Runnable callback = this.releaseCallback;
+        this.releaseCallback = null;
+        if (callback != null) {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.warn("Error running release callback of media session", e);
+            }
+        }
+    }
+
+    private synchronized void track() {
+        if (loadTracker != null && !pipelineReleased) {
+            loadTracker.pipelineCreated(type, NUM_WEBRTC_ENDPOINTS);
+            tracked = true;
         }
     }
 
+    /**
+     * @return completed when the KMS has released the pipeline, or right away
+     * if there is no pipeline
+     */
+    private synchronized CompletableFuture<Void> releasePipeline() {
+        if (pipelineRelease != null) {
+            return pipelineRelease;
+        }
+        MediaPipeline p = this.pipeline;
+        if (p == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        pipelineRelease = new CompletableFuture<>();
+        final CompletableFuture<Void> done = pipelineRelease;
+        pipelineReleased = true;
+        if (tracked) {
+            loadTracker.pipelineReleased(type, NUM_WEBRTC_ENDPOINTS);
+        }
+        // Not waiting for the KMS, which may be unreachable
+        try {
+            p.release(new Continuation<Void>() {
+                @Override
+                public void onSuccess(Void result) {
+                    log.trace("Media pipeline {} released", p.getId());
+                    done.complete(null);
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    log.warn("Error releasing media pipeline {}: {}", p.getId(), cause.getMessage());
+                    done.complete(null);
+                }
+            });
+        } catch (Throwable t) {
+            log.warn("Error releasing media pipeline {}", p.getId(), t);
+            done.complete(null);
+        }
+        return done;
+    }
+
     public WebRtcEndpoint getCallerWebRtcEp() {
         return callerWebRtcEp;
     }
@@ -52,4 +385,66 @@ public class UserMediaSession {
     public WebRtcEndpoint getCalleeWebRtcEp() {
         return calleeWebRtcEp;
     }
+
+    private static CompletableFuture<WebRtcEndpoint> buildEndpoint(MediaPipeline pipeline) {
+        CompletableFuture<WebRtcEndpoint> future = new CompletableFuture<>();
+        new WebRtcEndpoint.Builder(pipeline).buildAsync(continuation(future));
+        return future;
+    }
+
+    /**
+     * @param mediaType media to connect, null for all
+     */
+    private static CompletableFuture<Void> connect(MediaElement source, MediaElement sink, MediaType mediaType) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (mediaType == null) {
+            source.connect(sink, continuation(future));
+        } else {
+            source.connect(sink, mediaType, continuation(future));
+        }
+        return future;
+    }
+
+    private boolean limitsVideo() {
+        return maxVideoBandwidth > 0 && type != TrackType.AUDIO;
+    }
+
+    private CompletableFuture<Void> limitVideo(WebRtcEndpoint endpoint) {
+        if (!limitsVideo()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> recv = new CompletableFuture<>();
+        CompletableFuture<Void> send = new CompletableFuture<>();
+        endpoint.setMaxVideoRecvBandwidth(maxVideoBandwidth, continuation(recv));
+        endpoint.setMaxVideoSendBandwidth(maxVideoBandwidth, continuation(send));
+        return CompletableFuture.allOf(recv, send);
+    }
+
+    /**
+     * @return the only media connected for the given type, null for all
+     */
+    private static MediaType mediaType(TrackType type) {
+        switch (type) {
+            case AUDIO:
+                return MediaType.AUDIO;
+            case VIDEO:
+                return MediaType.VIDEO;
+            default:
+                return null;
+        }
+    }
+
+    public static <T> Continuation<T> continuation(final CompletableFuture<T> future) {
+        return new Continuation<T>() {
+            @Override
+            public void onSuccess(T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onError(Throwable cause) {
+                future.completeExceptionally(cause);
+            }
+        };
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.server.config.CloudMediaConfig;
+import org.ubonass.media.server.kurento.KurentoClientProvider;
+import org.ubonass.media.server.kurento.TrackType;
+import org.ubonass.media.server.kurento.kms.Kms;
+import org.ubonass.media.server.kurento.kms.KmsListener;
+import org.ubonass.media.server.kurento.kms.KmsManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the {@link UserMediaSession} of every one-to-one call. When the
+ * configured pool size is greater than 0 and the media servers are managed by
+ * a {@link KmsManager}, sessions are taken from a {@link UserMediaSessionPool}
+ * of pre-built sessions of the chosen {@link Kms}. Every media type has its own
+ * pools, those of audio and video only calls are created with their first
+ * call.
+ */
+public class UserMediaSessionFactory implements KmsListener {
+
+    private static final Logger log = LoggerFactory.getLogger(UserMediaSessionFactory.class);
+
+    private static final long POOL_CHECK_PERIOD_SECONDS = 5;
+
+    private final KurentoClientProvider kcProvider;
+    private final CloudMediaConfig config;
+
+    private final ConcurrentMap<Kms, ConcurrentMap<TrackType, UserMediaSessionPool>> pools =
+            new ConcurrentHashMap<>();
+    private ScheduledExecutorService poolExecutor;
+
+    public UserMediaSessionFactory(KurentoClientProvider kcProvider, CloudMediaConfig config) {
+        this.kcProvider = kcProvider;
+        this.config = config;
+        if (isPoolEnabled()) {
+            this.poolExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "media-session-pool");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (Kms kms : ((KmsManager) kcProvider).getKmss()) {
+                getPool(kms, TrackType.ALL).refill();
+            }
+            ((KmsManager) kcProvider).addKmsListener(this);
+            // Top up pools that could not be refilled (KMS full or unavailable)
+            this.poolExecutor.scheduleWithFixedDelay(() -> getPools().forEach(UserMediaSessionPool::refill),
+                    POOL_CHECK_PERIOD_SECONDS, POOL_CHECK_PERIOD_SECONDS, TimeUnit.SECONDS);
+            log.info("Pre-building {} media sessions per KMS", config.getCallPipelinePoolSize());
+        }
+    }
+
+    /**
+     * @param type media the endpoints of the session are connected for
+     * @return a new session, pre-built if the pool of the chosen KMS has one
+     * ready. Otherwise the session is built as configured
+     */
+    public UserMediaSession createSession(TrackType type) {
+        if (kcProvider instanceof KmsManager) {
+            Kms kms = ((KmsManager) kcProvider).getKms();
+            if (isPoolEnabled()) {
+                UserMediaSession session = getPool(kms, type).acquire();
+                if (session != null) {
+                    return session;
+                }
+            }
+            return build(kms, type);
+        }
+        final KurentoClient kurentoClient = kcProvider.getKurentoClient();
+        UserMediaSession session = config.isCallPipelineAsync() ?
+                UserMediaSession.createAsync(kurentoClient, type, config.getCallVideoMaxBandwidth()) :
+                new UserMediaSession(kurentoClient, type, config.getCallVideoMaxBandwidth());
+        // Lets the provider close clients no longer used by any call
+        session.setReleaseCallback(() -> kcProvider.releaseKurentoClient(kurentoClient));
+        return session;
+    }
+
+    @Override
+    public void kmsDisconnected(Kms kms) {
+        Map<TrackType, UserMediaSessionPool> kmsPools = pools.get(kms);
+        if (kmsPools != null) {
+            kmsPools.values().forEach(UserMediaSessionPool::clear);
+        }
+    }
+
+    @Override
+    public void kmsReconnected(Kms kms, boolean sameInstance) {
+        Map<TrackType, UserMediaSessionPool> kmsPools = pools.get(kms);
+        if (kmsPools != null) {
+            kmsPools.values().forEach(UserMediaSessionPool::refill);
+        }
+    }
+
+    @Override
+    public void kmsConnectionReplaced(Kms kms, KurentoClient oldClient) {
+        Map<TrackType, UserMediaSessionPool> kmsPools = pools.get(kms);
+        if (kmsPools != null) {
+            kmsPools.values().forEach(pool -> pool.clear(oldClient));
+        }
+    }
+
+    public Collection<UserMediaSessionPool> getPools() {
+        List<UserMediaSessionPool> all = new ArrayList<>();
+        for (Map<TrackType, UserMediaSessionPool> kmsPools : pools.values()) {
+            all.addAll(kmsPools.values());
+        }
+        return all;
+    }
+
+    public void close() {
+        if (kcProvider instanceof KmsManager) {
+            ((KmsManager) kcProvider).removeKmsListener(this);
+        }
+        if (poolExecutor != null) {
+            poolExecutor.shutdownNow();
+        }
+        getPools().forEach(UserMediaSessionPool::close);
+    }
+
+    private UserMediaSession build(Kms kms, TrackType type) {
+        return config.isCallPipelineAsync() ?
+                UserMediaSession.createAsync(kms, type, config.getCallVideoMaxBandwidth()) :
+                new UserMediaSession(kms, type, config.getCallVideoMaxBandwidth());
+    }
+
+    private UserMediaSessionPool getPool(Kms kms, TrackType type) {
+        return pools.computeIfAbsent(kms, k -> new ConcurrentHashMap<>()).computeIfAbsent(type,
+                t -> new UserMediaSessionPool(kms, t, config.getCallVideoMaxBandwidth(),
+                        config.getCallPipelinePoolSize(), poolExecutor));
+    }
+
+    private boolean isPoolEnabled() {
+        return config.getCallPipelinePoolSize() > 0 && kcProvider instanceof KmsManager;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.call;
+
+import com.google.gson.JsonObject;
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.server.kurento.TrackType;
+import org.ubonass.media.server.kurento.kms.Kms;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a number of pre-built {@link UserMediaSession}s (pipeline plus a pair
+ * of connected endpoints) of one media type ready in one {@link Kms}, so a
+ * new call does not have to wait for them to be created. Sessions handed out
+ * are owned by the call and released with it; the pool refills itself in the
+ * background.
+ */
+public class UserMediaSessionPool {
+
+    private static final Logger log = LoggerFactory.getLogger(UserMediaSessionPool.class);
+
+    private final Kms kms;
+    private final TrackType type;
+    private final int maxVideoBandwidth;
+    private final int size;
+    private final Executor refillExecutor;
+
+    private final ConcurrentLinkedQueue<UserMediaSession> idleSessions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idle = new AtomicInteger();
+    private final AtomicInteger building = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refills = new AtomicLong();
+    private final AtomicLong refillErrors = new AtomicLong();
+
+    /**
+     * @param type              media the sessions are built for
+     * @param maxVideoBandwidth maximum video bandwidth in kbps of their
+     *                          endpoints, 0 for the KMS default
+     */
+    public UserMediaSessionPool(Kms kms, TrackType type, int maxVideoBandwidth, int size, Executor refillExecutor) {
+        this.kms = kms;
+        this.type = type;
+        this.maxVideoBandwidth = maxVideoBandwidth;
+        this.size = size;
+        this.refillExecutor = refillExecutor;
+    }
+
+    /**
+     * @return a ready session, or null if the pool is empty
+     */
+    public UserMediaSession acquire() {
+        UserMediaSession session = idleSessions.poll();
+        if (session != null) {
+            idle.decrementAndGet();
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        refill();
+        return session;
+    }
+
+    /**
+     * Asynchronously builds sessions until the pool is full again, as long as the
+     * KMS accepts more elements
+     */
+    public void refill() {
+        if (closed || idle.get() + building.get() >= size) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            while (!closed && reserveSlot()) {
+                if (!kms.isHealthy() || !kms.allowMoreElements()) {
+                    building.decrementAndGet();
+                    log.debug("KMS {} does not allow more elements, pool not refilled", kms.getUri());
+                    return;
+                }
+                UserMediaSession.createAsync(kms, type, maxVideoBandwidth).whenReady()
+                        .whenComplete((session, t) -> {
+                            if (t != null) {
+                                refillErrors.incrementAndGet();
+                                log.warn("Error pre-building media session in KMS {}: {}",
+                                        kms.getUri(), t.getMessage());
+                            } else if (closed) {
+                                session.release();
+                            } else {
+                                idleSessions.offer(session);
+                                idle.incrementAndGet();
+                                refills.incrementAndGet();
+                            }
+                            building.decrementAndGet();
+                        });
+            }
+        });
+    }
+
+    private boolean reserveSlot() {
+        for (; ; ) {
+            int current = building.get();
+            if (idle.get() + current >= size) {
+                return false;
+            }
+            if (building.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases all the idle sessions. Sessions being built are released as soon
+     * as they are ready
+     */
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * Releases the idle sessions, which are no longer usable after the KMS is
+     * lost. The pool can be refilled afterwards
+     */
+    public void clear() {
+        UserMediaSession session;
+        while ((session = idleSessions.poll()) != null) {
+            idle.decrementAndGet();
+            session.release();
+        }
+    }
+
+    /**
+     * Releases the idle sessions built through the given client, which is no
+     * longer connected, and refills the pool
+     */
+    public void clear(KurentoClient client) {
+        for (UserMediaSession session : idleSessions) {
+            if (session.getKurentoClient() == client && idleSessions.remove(session)) {
+                idle.decrementAndGet();
+                session.release();
+            }
+        }
+        refill();
+    }
+
+    public Kms getKms() {
+        return kms;
+    }
+
+    public TrackType getType() {
+        return type;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getIdle() {
+        return idle.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getRefills() {
+        return refills.get();
+    }
+
+    public long getRefillErrors() {
+        return refillErrors.get();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("kms", kms.getUri());
+        json.addProperty("type", type.name());
+        json.addProperty("size", size);
+        json.addProperty("idle", getIdle());
+        json.addProperty("building", building.get());
+        json.addProperty("hits", getHits());
+        json.addProperty("misses", getMisses());
+        json.addProperty("refills", getRefills());
+        json.addProperty("refillErrors", getRefillErrors());
+        return json;
+    }
+}
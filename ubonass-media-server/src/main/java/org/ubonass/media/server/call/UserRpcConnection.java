@@ -11,9 +11,6 @@ import org.ubonass.media.client.CloudMediaException;
 import org.ubonass.media.server.rpc.RpcConnection;
 import org.ubonass.media.server.rpc.RpcNotificationService;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class UserRpcConnection extends RpcConnection {
 
     @Autowired
@@ -22,20 +19,27 @@ public class UserRpcConnection extends RpcConnection {
     private static final Logger logger =
             LoggerFactory.getLogger(UserRpcConnection.class);
 
-    private final String userId;
     private String sdpOffer;
     private String callingTo;
     private String callingFrom;
-    private WebRtcEndpoint webRtcEndpoint;
-    private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
+    private volatile IceCandidateBuffer candidates = new IceCandidateBuffer();
+    private volatile String callOwnerNode;
 
+    /**
+     * Takes the place of the given connection, sharing its session and its
+     * open transactions
+     */
     public UserRpcConnection(RpcConnection rpcConnection, String userId) {
-        super(rpcConnection.getSession());
-        this.userId = userId;
+        super(rpcConnection);
+        setUserId(userId);
     }
 
-    public String getUserId() {
-        return userId;
+    /**
+     * User without a local session, attached to another node
+     */
+    protected UserRpcConnection(String participantPrivateId, String userId) {
+        super(participantPrivateId);
+        setUserId(userId);
     }
 
     public String getSdpOffer() {
@@ -62,6 +66,14 @@ public class UserRpcConnection extends RpcConnection {
         this.callingFrom = callingFrom;
     }
 
+    /**
+     * @return the node handling the current call of this user, when it is not
+     * the local one. The requests of the call are relayed to it
+     */
+    public String getCallOwnerNode() {
+        return callOwnerNode;
+    }
+
     /*public void sendResponse(Integer transactionId, JsonObject result) {
         logger.info("Sending response from user '{}': {}", userId,
                 result.toString());
@@ -83,25 +95,90 @@ public class UserRpcConnection extends RpcConnection {
                 transactionId, data, error);
     }*/
 
+    /**
+     * Sets the endpoint of the current call and gives it all the candidates
+     * received so far. Candidates are kept until the call ends, so they can be
+     * given again to a new endpoint if the call is moved to another KMS
+     */
     public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
-        this.webRtcEndpoint = webRtcEndpoint;
+        candidates.attach(webRtcEndpoint);
+    }
+
+    /**
+     * @return false if the candidate was dropped, as a repeated one or beyond
+     * the capacity of the buffer
+     */
+    public boolean addCandidate(IceCandidate candidate) {
+        return candidates.add(candidate);
+    }
+
+    public IceCandidateBuffer getCandidateBuffer() {
+        return candidates;
+    }
+
+    /**
+     * Replaces the candidate buffer, before the first call of the user
+     */
+    public void setCandidateBuffer(IceCandidateBuffer candidates) {
+        this.candidates = candidates;
+    }
+
+    /**
+     * @return true if the user is in a call, handled by this node or by another
+     */
+    public synchronized boolean isInCall() {
+        return getSessionId() != null || callOwnerNode != null;
+    }
+
+    /**
+     * Takes an incoming call, unless the user is already in another one
+     *
+     * @return false if the user is busy
+     */
+    public synchronized boolean ring(String fromId, String sessionId) {
+        if (isInCall()) {
+            return false;
+        }
+        clear();
+        this.callingFrom = fromId;
+        setSessionId(sessionId);
+        return true;
+    }
 
-        for (IceCandidate e : candidateList) {
-            this.webRtcEndpoint.addIceCandidate(e);
+    /**
+     * Takes an incoming call handled by another node, unless the user is
+     * already in another call. A call still recorded as handled by the same
+     * node has ended there, as that node does not consider the user busy
+     *
+     * @return false if the user is busy
+     */
+    public synchronized boolean ringFrom(String ownerNode) {
+        if (getSessionId() != null || (callOwnerNode != null && !callOwnerNode.equals(ownerNode))) {
+            return false;
         }
-        this.candidateList.clear();
+        clear();
+        this.callOwnerNode = ownerNode;
+        return true;
     }
 
-    public void addCandidate(IceCandidate candidate) {
-        if (this.webRtcEndpoint != null) {
-            this.webRtcEndpoint.addIceCandidate(candidate);
-        } else {
-            candidateList.add(candidate);
+    /**
+     * The call handled by the given node has ended
+     */
+    public synchronized void callOwnerGone(String ownerNode) {
+        if (ownerNode.equals(callOwnerNode)) {
+            this.callOwnerNode = null;
         }
     }
 
-    public void clear() {
-        this.webRtcEndpoint = null;
-        this.candidateList.clear();
+    /**
+     * Forgets the current call
+     */
+    public synchronized void clear() {
+        this.sdpOffer = null;
+        this.callingTo = null;
+        this.callingFrom = null;
+        setSessionId(null);
+        this.candidates = candidates.renew();
+        this.callOwnerNode = null;
     }
 }
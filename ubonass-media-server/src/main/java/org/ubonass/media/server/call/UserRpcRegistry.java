@@ -17,45 +17,302 @@
 
 package org.ubonass.media.server.call;
 
-import org.kurento.jsonrpc.Session;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.kurento.jsonrpc.JsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.cluster.ClusterChannel;
+import org.ubonass.media.server.cluster.ClusterProtocol;
+import org.ubonass.media.server.cluster.UserLocationRegistry;
+import org.ubonass.media.server.config.CloudMediaConfig;
 import org.ubonass.media.server.rpc.RpcConnection;
+import org.ubonass.media.server.rpc.RpcConnectionRegistry;
+import org.ubonass.media.server.rpc.RpcNotificationService;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Users registered in the call endpoint. Local users are kept in the
+ * {@link RpcConnectionRegistry#CALL_USERS} index of the shared
+ * {@link RpcConnectionRegistry}, where every {@link UserRpcConnection} replaces
+ * the plain connection of its WebSocket session. Users connected to other
+ * signalling nodes are found through the {@link UserLocationRegistry} and
+ * represented by a {@link RemoteUserRpcConnection} while they are called from
+ * this node.
+ */
 @Component
 public class UserRpcRegistry {
 
-    private ConcurrentHashMap<String, UserRpcConnection> usersByUserId = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, UserRpcConnection> usersByParticipantPrivateIdId = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(UserRpcRegistry.class);
+
+    @Autowired
+    private RpcConnectionRegistry connections;
+
+    @Autowired
+    private RpcNotificationService notificationService;
+
+    @Autowired
+    private UserLocationRegistry locations;
+
+    @Autowired
+    private CloudMediaConfig config;
+
+    @Autowired
+    private CallRegistry calls;
+
+    private ClusterChannel cluster;
+
+    private final ConcurrentMap<String, RemoteUserRpcConnection> remoteUsers = new ConcurrentHashMap<>();
+
+    @Autowired
+    public void setCluster(ClusterChannel cluster) {
+        this.cluster = cluster;
+        cluster.register(ClusterProtocol.HAS_USER_METHOD, params ->
+                new JsonPrimitive(getLocalUser(params.get(ClusterProtocol.USER_PARAM).getAsString()) != null));
+        cluster.register(ClusterProtocol.NOTIFY_USER_METHOD, this::deliverNotification);
+        cluster.register(ClusterProtocol.RING_USER_METHOD, this::ringLocalUser);
+    }
+
+    /**
+     * @return false if the user id is already registered by another open
+     * connection, in this node or in another one
+     */
+    public boolean register(UserRpcConnection user) {
+        final String userId = user.getUserId();
+        user.setCandidateBuffer(newCandidateBuffer());
+        if (!connections.bindUser(RpcConnectionRegistry.CALL_USERS, userId, user)) {
+            return false;
+        }
+        try {
+            if (!locations.register(userId, cluster.getLocalNodeId())) {
+                connections.unbindUser(RpcConnectionRegistry.CALL_USERS, userId, user);
+                return false;
+            }
+        } catch (CloudMediaException e) {
+            // Still reachable by the users of this node
+            log.warn("Unable to record the location of user {}: {}", userId, e.getMessage());
+        }
+        forgetRemoteUser(userId);
+        return true;
+    }
 
-    public void register(UserRpcConnection user) {
-        usersByUserId.put(user.getUserId(), user);
-        usersByParticipantPrivateIdId.put(user.getParticipantPrivateId(), user);
+    /**
+     * Forgets the location of a user whose connection has been closed, unless
+     * it has registered again in this node
+     */
+    public void unregister(UserRpcConnection user) {
+        if (getLocalUser(user.getUserId()) == null) {
+            locations.unregister(user.getUserId(), cluster.getLocalNodeId());
+        }
     }
 
+    /**
+     * @return the user connected to this node, or the stand-in of the user if it
+     * is connected to another node. Null if it is not registered
+     */
     public UserRpcConnection getByUserId(String userId) {
-        return usersByUserId.get(userId);
+        UserRpcConnection user = getLocalUser(userId);
+        if (user != null) {
+            return user;
+        }
+        String nodeId;
+        try {
+            nodeId = locations.locate(userId);
+        } catch (CloudMediaException e) {
+            log.warn("Unable to locate user {}: {}", userId, e.getMessage());
+            return null;
+        }
+        if (nodeId == null || nodeId.equals(cluster.getLocalNodeId())) {
+            forgetRemoteUser(userId);
+            return null;
+        }
+        return getRemoteUser(userId, nodeId);
+    }
+
+    /**
+     * @return the user if it is connected to this node
+     */
+    public UserRpcConnection getLocalUser(String userId) {
+        return asUser(connections.getByUserId(RpcConnectionRegistry.CALL_USERS, userId));
     }
 
     public UserRpcConnection
     getByUserRpcConnection(RpcConnection rpcConnection) {
-        return usersByParticipantPrivateIdId
-                .get(rpcConnection.getParticipantPrivateId());
+        return asUser(connections.getByPrivateId(rpcConnection.getParticipantPrivateId()));
     }
 
-    public boolean exists(String userId) {
-        return usersByUserId.keySet().contains(userId);
+    /**
+     * @return the stand-in of a user connected to the given node
+     */
+    public RemoteUserRpcConnection getRemoteUser(final String userId, final String nodeId) {
+        return remoteUsers.compute(userId, (id, current) -> {
+            if (current != null && current.getNodeId().equals(nodeId)) {
+                return current;
+            }
+            if (current != null) {
+                connections.remove(current.getParticipantPrivateId());
+            }
+            RemoteUserRpcConnection user = new RemoteUserRpcConnection(userId, nodeId, this);
+            user.setCandidateBuffer(newCandidateBuffer());
+            // Reachable by private id, as local users, to route its notifications
+            connections.add(user);
+            return user;
+        });
     }
 
-    public UserRpcConnection
-    removeByUserRpcConnection(UserRpcConnection rpcConnection) {
-        final UserRpcConnection user = getByUserRpcConnection(rpcConnection);
+    public void forgetRemoteUser(String userId) {
+        RemoteUserRpcConnection user = remoteUsers.remove(userId);
         if (user != null) {
-            usersByUserId.remove(user.getUserId());
-            usersByParticipantPrivateIdId.remove(rpcConnection.getParticipantPrivateId());
+            connections.remove(user.getParticipantPrivateId());
+        }
+    }
+
+    /**
+     * @return the local users and the stand-ins of the remote users in calls of
+     * this node
+     */
+    public Collection<UserRpcConnection> getUsers() {
+        List<UserRpcConnection> users = new ArrayList<>();
+        for (RpcConnection connection : connections.getUsers(RpcConnectionRegistry.CALL_USERS)) {
+            if (connection instanceof UserRpcConnection) {
+                users.add((UserRpcConnection) connection);
+            }
         }
-        return user;
+        users.addAll(remoteUsers.values());
+        return users;
+    }
+
+    public boolean exists(String userId) {
+        return getByUserId(userId) != null;
+    }
+
+    /**
+     * Sends a notification to a remote user through its node. While the user
+     * is in a call of this node, the node is told so; once it is not, the node
+     * stops relaying the requests of the user here
+     */
+    void forwardNotification(final RemoteUserRpcConnection user, final String method, final Object params) {
+        JsonObject message = new JsonObject();
+        message.addProperty(ClusterProtocol.USER_PARAM, user.getUserId());
+        message.addProperty(ClusterProtocol.METHOD_PARAM, method);
+        if (params != null) {
+            message.add(ClusterProtocol.PARAMS_PARAM,
+                    params instanceof JsonElement ? (JsonElement) params : JsonUtils.toJsonElement(params));
+        }
+        message.addProperty(ClusterProtocol.NODE_PARAM, cluster.getLocalNodeId());
+        if (user.getCallingFrom() != null && !ProtocolElements.STOP_COMMUNICATION_METHOD.equals(method)) {
+            message.addProperty(ClusterProtocol.OWNER_PARAM, cluster.getLocalNodeId());
+        }
+        cluster.request(user.getNodeId(), ClusterProtocol.NOTIFY_USER_METHOD, message)
+                .whenComplete((delivered, t) -> {
+                    if (t != null || !delivered.getAsBoolean()) {
+                        log.warn("Notification '{}' not delivered to user {} in node '{}': {}", method,
+                                user.getUserId(), user.getNodeId(), t != null ? t.getMessage() : "not connected");
+                        forgetUnreachable(user);
+                    }
+                });
+    }
+
+    private void forgetUnreachable(RemoteUserRpcConnection user) {
+        locations.invalidate(user.getUserId());
+        if (remoteUsers.remove(user.getUserId(), user)) {
+            connections.remove(user.getParticipantPrivateId());
+        }
+    }
+
+    private JsonElement deliverNotification(JsonObject message) {
+        UserRpcConnection user = getLocalUser(message.get(ClusterProtocol.USER_PARAM).getAsString());
+        if (user == null) {
+            return new JsonPrimitive(false);
+        }
+        JsonElement owner = message.get(ClusterProtocol.OWNER_PARAM);
+        JsonElement node = message.get(ClusterProtocol.NODE_PARAM);
+        if ((owner == null || owner.isJsonNull()) && node != null) {
+            // Sent once the call has ended in that node. The owner of a call is
+            // only set when ringing, never by a notification
+            user.callOwnerGone(node.getAsString());
+        }
+        notificationService.sendNotification(user.getParticipantPrivateId(),
+                message.get(ClusterProtocol.METHOD_PARAM).getAsString(), message.get(ClusterProtocol.PARAMS_PARAM));
+        return new JsonPrimitive(true);
+    }
+
+    /**
+     * Rings a remote user through its node, which decides whether it is busy.
+     * If it is not, the node is told this one owns the call and the
+     * notification is delivered
+     *
+     * @return completed with {@link ClusterProtocol#RING_RINGING},
+     * {@link ClusterProtocol#RING_BUSY} or {@link ClusterProtocol#RING_OFFLINE}
+     */
+    public CompletableFuture<String> ring(final RemoteUserRpcConnection user, String method, JsonObject params) {
+        JsonObject message = new JsonObject();
+        message.addProperty(ClusterProtocol.USER_PARAM, user.getUserId());
+        message.addProperty(ClusterProtocol.OWNER_PARAM, cluster.getLocalNodeId());
+        message.addProperty(ClusterProtocol.METHOD_PARAM, method);
+        message.add(ClusterProtocol.PARAMS_PARAM, params);
+        return cluster.request(user.getNodeId(), ClusterProtocol.RING_USER_METHOD, message)
+                .handle((state, t) -> {
+                    if (t == null && !ClusterProtocol.RING_OFFLINE.equals(state.getAsString())) {
+                        return state.getAsString();
+                    }
+                    log.warn("User {} not rung in node '{}': {}", user.getUserId(), user.getNodeId(),
+                            t != null ? t.getMessage() : "not connected");
+                    forgetUnreachable(user);
+                    return ClusterProtocol.RING_OFFLINE;
+                });
+    }
+
+    private JsonElement ringLocalUser(JsonObject message) {
+        UserRpcConnection user = getLocalUser(message.get(ClusterProtocol.USER_PARAM).getAsString());
+        if (user == null) {
+            return new JsonPrimitive(ClusterProtocol.RING_OFFLINE);
+        }
+        if (!user.ringFrom(message.get(ClusterProtocol.OWNER_PARAM).getAsString())) {
+            return new JsonPrimitive(ClusterProtocol.RING_BUSY);
+        }
+        notificationService.sendNotification(user.getParticipantPrivateId(),
+                message.get(ClusterProtocol.METHOD_PARAM).getAsString(), message.get(ClusterProtocol.PARAMS_PARAM));
+        return new JsonPrimitive(ClusterProtocol.RING_RINGING);
+    }
+
+    /**
+     * Sends a request of a local user to the node owning its current call
+     */
+    public void relay(final UserRpcConnection user, final String method, JsonObject params) {
+        final String owner = user.getCallOwnerNode();
+        JsonObject message = new JsonObject();
+        message.addProperty(ClusterProtocol.USER_PARAM, user.getUserId());
+        message.addProperty(ClusterProtocol.NODE_PARAM, cluster.getLocalNodeId());
+        message.addProperty(ClusterProtocol.METHOD_PARAM, method);
+        message.add(ClusterProtocol.PARAMS_PARAM, params);
+        cluster.request(owner, ClusterProtocol.RELAY_REQUEST_METHOD, message).whenComplete((r, t) -> {
+            if (t != null) {
+                log.warn("Request '{}' of user {} not relayed to node '{}': {}", method, user.getUserId(), owner,
+                        t.getMessage());
+                // Its call is lost with the node
+                user.callOwnerGone(owner);
+            }
+        });
+    }
+
+    private IceCandidateBuffer newCandidateBuffer() {
+        return new IceCandidateBuffer(config.getCallIceBufferCapacity(), calls.getCandidateMetrics());
+    }
+
+    private static UserRpcConnection asUser(RpcConnection connection) {
+        return connection instanceof UserRpcConnection ? (UserRpcConnection) connection : null;
     }
 
 }
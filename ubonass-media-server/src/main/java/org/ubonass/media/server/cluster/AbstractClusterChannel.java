@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the handlers of the messages received from other nodes
+ */
+public abstract class AbstractClusterChannel implements ClusterChannel {
+
+    private final String localNodeId;
+    private final ConcurrentMap<String, ClusterMessageHandler> handlers = new ConcurrentHashMap<>();
+
+    protected AbstractClusterChannel(String localNodeId) {
+        this.localNodeId = localNodeId;
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    @Override
+    public void register(String method, ClusterMessageHandler handler) {
+        if (handlers.putIfAbsent(method, handler) != null) {
+            throw new IllegalStateException("Cluster method '" + method + "' is already registered");
+        }
+    }
+
+    /**
+     * Runs the handler of a message received from another node
+     *
+     * @throws CloudMediaException if there is no handler for the method
+     */
+    public JsonElement dispatch(String method, JsonObject params) throws Exception {
+        ClusterMessageHandler handler = handlers.get(method);
+        if (handler == null) {
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Unrecognized cluster method '" + method + "'");
+        }
+        JsonElement result = handler.handle(params != null ? params : new JsonObject());
+        return result != null ? result : JsonNull.INSTANCE;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Request/response channel between the signalling nodes of the cluster. Each
+ * node is known by its id; requests addressed to the local node are handled
+ * locally.
+ */
+public interface ClusterChannel {
+
+    String getLocalNodeId();
+
+    /**
+     * @return the ids of all the nodes of the cluster, including the local one
+     */
+    List<String> getNodeIds();
+
+    /**
+     * Handles the given method of the messages received from other nodes
+     */
+    void register(String method, ClusterMessageHandler handler);
+
+    /**
+     * Sends a request to a node without waiting for it
+     *
+     * @return completed with the result, or exceptionally if the node could not
+     * be reached or failed handling it
+     */
+    CompletableFuture<JsonElement> request(String nodeId, String method, JsonObject params);
+
+    void close();
+}
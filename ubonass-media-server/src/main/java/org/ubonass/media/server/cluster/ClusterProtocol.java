@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+/**
+ * Methods and parameters of the JSON-RPC messages exchanged between
+ * signalling nodes
+ */
+public final class ClusterProtocol {
+
+    // Location of the users, handled by the node owning the shard of the user
+    public static final String REGISTER_USER_METHOD = "registerUser";
+    public static final String UNREGISTER_USER_METHOD = "unregisterUser";
+    public static final String LOCATE_USER_METHOD = "locateUser";
+    public static final String LOCATE_USERS_METHOD = "locateUsers";
+
+    // Handled by the node where the user is connected
+    public static final String HAS_USER_METHOD = "hasUser";
+    public static final String NOTIFY_USER_METHOD = "notifyUser";
+    public static final String NOTIFY_USERS_METHOD = "notifyUsers";
+    public static final String RING_USER_METHOD = "ringUser";
+
+    // Handled by the node owning the call of the user
+    public static final String RELAY_REQUEST_METHOD = "relayRequest";
+
+    // Query parameter of the cluster endpoint uri, the secret shared by the nodes
+    public static final String SECRET_QUERY_PARAM = "secret";
+
+    public static final String USER_PARAM = "userId";
+    public static final String NODE_PARAM = "nodeId";
+    public static final String METHOD_PARAM = "method";
+    public static final String PARAMS_PARAM = "params";
+    public static final String OWNER_PARAM = "owner";
+    public static final String USERS_PARAM = "userIds";
+    public static final String NOTIFICATIONS_PARAM = "notifications";
+
+    // Results of ringUser
+    public static final String RING_RINGING = "ringing";
+    public static final String RING_BUSY = "busy";
+    public static final String RING_OFFLINE = "offline";
+
+    private ClusterProtocol() {
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.internal.ws.WebSocketServerSession;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Endpoint receiving the messages of the other signalling nodes. Only the
+ * connections presenting the secret shared by the nodes are accepted, any
+ * other is closed before it can send a message
+ */
+public class ClusterRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRpcHandler.class);
+
+    private static final String AUTHENTICATED_ATTRIBUTE = "clusterNodeAuthenticated";
+
+    private final AbstractClusterChannel channel;
+    private final byte[] secret;
+
+    /**
+     * @param secret shared by all the nodes, must not be empty
+     */
+    public ClusterRpcHandler(AbstractClusterChannel channel, String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The cluster endpoint requires a secret");
+        }
+        this.channel = channel;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void afterConnectionEstablished(Session session) throws Exception {
+        super.afterConnectionEstablished(session);
+        String presented = null;
+        String remote = null;
+        if (session instanceof WebSocketServerSession) {
+            WebSocketSession webSocket = ((WebSocketServerSession) session).getWebSocketSession();
+            remote = String.valueOf(webSocket.getRemoteAddress());
+            presented = UriComponentsBuilder.fromUri(webSocket.getUri()).build()
+                    .getQueryParams().getFirst(ClusterProtocol.SECRET_QUERY_PARAM);
+        }
+        if (presented != null && MessageDigest.isEqual(secret,
+                URLDecoder.decode(presented, "UTF-8").getBytes(StandardCharsets.UTF_8))) {
+            session.getAttributes().put(AUTHENTICATED_ATTRIBUTE, Boolean.TRUE);
+            return;
+        }
+        log.warn("Connection to the cluster endpoint from {} without a valid secret, closed", remote);
+        session.close();
+    }
+
+    @Override
+    public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
+        Session session = transaction.getSession();
+        if (!Boolean.TRUE.equals(session.getAttributes().get(AUTHENTICATED_ATTRIBUTE))) {
+            log.warn("Cluster request '{}' from an unauthenticated connection rejected", request.getMethod());
+            session.close();
+            return;
+        }
+        log.trace("Cluster request: {}", request);
+        JsonElement result = channel.dispatch(request.getMethod(), request.getParams());
+        if (request.getId() != null) {
+            transaction.sendResponse(result);
+        }
+    }
+}
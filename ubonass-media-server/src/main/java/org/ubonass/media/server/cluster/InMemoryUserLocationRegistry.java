@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Locations kept in this process: all the users of a single node cluster, or
+ * the shard of the users owned by this node
+ */
+public class InMemoryUserLocationRegistry implements UserLocationRegistry {
+
+    private final ConcurrentMap<String, String> locations = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean register(String userId, String nodeId) {
+        return nodeId.equals(register(userId, nodeId, null));
+    }
+
+    /**
+     * Records the user in the given node, unless it is recorded in a node other
+     * than the stale one
+     *
+     * @param staleNodeId node where the user is known to be no longer
+     *                    connected, may be null
+     * @return the node where the user is recorded after the call
+     */
+    public String register(String userId, String nodeId, String staleNodeId) {
+        return locations.compute(userId,
+                (id, current) -> current == null || current.equals(staleNodeId) ? nodeId : current);
+    }
+
+    @Override
+    public void unregister(String userId, String nodeId) {
+        locations.remove(userId, nodeId);
+    }
+
+    @Override
+    public String locate(String userId) {
+        return locations.get(userId);
+    }
+
+    public int size() {
+        return locations.size();
+    }
+
+    @Override
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("users", size());
+        return json;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.kurento.jsonrpc.client.Continuation;
+import org.kurento.jsonrpc.client.JsonRpcClient;
+import org.kurento.jsonrpc.client.JsonRpcClientNettyWebSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Channel between signalling nodes over JSON-RPC WebSocket connections. Every
+ * node serves the messages of the others with a {@link ClusterRpcHandler} and
+ * opens one client connection to each of the other nodes, the first time it
+ * sends them a request.
+ */
+public class JsonRpcClusterChannel extends AbstractClusterChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(JsonRpcClusterChannel.class);
+
+    private final Map<String, String> nodeUris;
+    private final String secret;
+    private final long requestTimeout;
+    private final ConcurrentMap<String, JsonRpcClient> clients = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeUris       WebSocket uri of the cluster endpoint of every node,
+     *                       by node id. It may include the local node
+     * @param secret         shared by all the nodes, sent when connecting to
+     *                       the others
+     * @param requestTimeout milliseconds to wait for the response of a node
+     */
+    public JsonRpcClusterChannel(String localNodeId, Map<String, String> nodeUris, String secret,
+                                 long requestTimeout) {
+        super(localNodeId);
+        this.nodeUris = new LinkedHashMap<>(nodeUris);
+        this.secret = secret;
+        this.requestTimeout = requestTimeout;
+        log.info("Signalling node '{}' in a cluster of nodes {}", localNodeId, getNodeIds());
+    }
+
+    @Override
+    public List<String> getNodeIds() {
+        List<String> nodeIds = new ArrayList<>(nodeUris.keySet());
+        if (!nodeIds.contains(getLocalNodeId())) {
+            nodeIds.add(getLocalNodeId());
+        }
+        Collections.sort(nodeIds);
+        return nodeIds;
+    }
+
+    @Override
+    public CompletableFuture<JsonElement> request(String nodeId, String method, JsonObject params) {
+        final CompletableFuture<JsonElement> future = new CompletableFuture<>();
+        if (getLocalNodeId().equals(nodeId)) {
+            try {
+                future.complete(dispatch(method, params));
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+            return future;
+        }
+        JsonRpcClient client = getClient(nodeId);
+        if (client == null) {
+            future.completeExceptionally(new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                    "Unknown cluster node '" + nodeId + "'"));
+            return future;
+        }
+        try {
+            client.sendRequest(method, params, new Continuation<JsonElement>() {
+                @Override
+                public void onSuccess(JsonElement result) {
+                    future.complete(result);
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    future.completeExceptionally(cause);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private JsonRpcClient getClient(final String nodeId) {
+        final String uri = nodeUris.get(nodeId);
+        if (uri == null) {
+            return null;
+        }
+        return clients.computeIfAbsent(nodeId, id -> {
+            JsonRpcClientNettyWebSocket client = new JsonRpcClientNettyWebSocket(withSecret(uri));
+            client.setLabel("cluster-" + id);
+            client.setRequestTimeout(requestTimeout);
+            return client;
+        });
+    }
+
+    private String withSecret(String uri) {
+        try {
+            return uri + (uri.indexOf('?') < 0 ? '?' : '&') + ClusterProtocol.SECRET_QUERY_PARAM + '='
+                    + URLEncoder.encode(secret, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Map.Entry<String, JsonRpcClient> client : clients.entrySet()) {
+            try {
+                client.getValue().close();
+            } catch (IOException e) {
+                log.warn("Error closing connection with cluster node '{}'", client.getKey(), e);
+            }
+        }
+        clients.clear();
+    }
+}
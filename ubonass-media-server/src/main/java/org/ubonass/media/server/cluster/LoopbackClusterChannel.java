@@ -0,0 +1,114 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Channel between nodes living in the same JVM, used when the server runs as
+ * a single node and to try several nodes in one process. Messages addressed to
+ * a node are handled in order by a thread of that node, as they would be
+ * over a real connection.
+ */
+public class LoopbackClusterChannel extends AbstractClusterChannel {
+
+    /**
+     * Nodes that can reach each other
+     */
+    public static class Network {
+
+        private final Map<String, LoopbackClusterChannel> nodes = new ConcurrentHashMap<>();
+
+        List<String> getNodeIds() {
+            List<String> nodeIds = new ArrayList<>(nodes.keySet());
+            Collections.sort(nodeIds);
+            return nodeIds;
+        }
+    }
+
+    private final Network network;
+    private final ExecutorService executor;
+
+    /**
+     * Single node cluster
+     */
+    public LoopbackClusterChannel(String localNodeId) {
+        this(localNodeId, new Network());
+    }
+
+    public LoopbackClusterChannel(String localNodeId, Network network) {
+        super(localNodeId);
+        this.network = network;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-loopback-" + localNodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (network.nodes.putIfAbsent(localNodeId, this) != null) {
+            throw new IllegalArgumentException("Node '" + localNodeId + "' is already in the network");
+        }
+    }
+
+    @Override
+    public List<String> getNodeIds() {
+        return network.getNodeIds();
+    }
+
+    @Override
+    public CompletableFuture<JsonElement> request(String nodeId, String method, JsonObject params) {
+        final CompletableFuture<JsonElement> future = new CompletableFuture<>();
+        final LoopbackClusterChannel node = network.nodes.get(nodeId);
+        if (node == null) {
+            future.completeExceptionally(new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                    "Unknown cluster node '" + nodeId + "'"));
+            return future;
+        }
+        // Messages are copied, as they would be serialized by a real channel
+        final JsonObject copy = params != null ? new JsonParser().parse(params.toString()).getAsJsonObject() : null;
+        try {
+            node.executor.execute(() -> {
+                try {
+                    future.complete(node.dispatch(method, copy));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public void close() {
+        network.nodes.remove(getLocalNodeId(), this);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * View of a {@link UserLocationRegistry} where the user ids of one signalling
+ * endpoint are kept apart from those of the others, so the same user can be
+ * connected to several endpoints, even in different nodes
+ */
+public class NamespacedUserLocationRegistry implements UserLocationRegistry {
+
+    private final UserLocationRegistry locations;
+    private final String prefix;
+
+    public NamespacedUserLocationRegistry(UserLocationRegistry locations, String namespace) {
+        this.locations = locations;
+        this.prefix = namespace + '/';
+    }
+
+    @Override
+    public boolean register(String userId, String nodeId) {
+        return locations.register(prefix + userId, nodeId);
+    }
+
+    @Override
+    public void unregister(String userId, String nodeId) {
+        locations.unregister(prefix + userId, nodeId);
+    }
+
+    @Override
+    public String locate(String userId) {
+        return locations.locate(prefix + userId);
+    }
+
+    @Override
+    public Map<String, String> locateAll(Collection<String> userIds) {
+        List<String> keys = new ArrayList<>(userIds.size());
+        for (String userId : userIds) {
+            keys.add(prefix + userId);
+        }
+        Map<String, String> nodes = new HashMap<>();
+        for (Map.Entry<String, String> location : locations.locateAll(keys).entrySet()) {
+            nodes.put(location.getKey().substring(prefix.length()), location.getValue());
+        }
+        return nodes;
+    }
+
+    @Override
+    public void invalidate(String userId) {
+        locations.invalidate(prefix + userId);
+    }
+
+    @Override
+    public JsonObject toJson() {
+        return locations.toJson();
+    }
+}
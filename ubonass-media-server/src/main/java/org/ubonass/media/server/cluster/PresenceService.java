@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.server.rpc.RpcConnection;
+import org.ubonass.media.server.rpc.RpcConnectionRegistry;
+import org.ubonass.media.server.rpc.RpcNotificationService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Online state of the users of the whole cluster, and delivery of a
+ * notification to many of them at once. Users of this node are notified
+ * through their outbound queues; the users of every other node are located
+ * in one batch and sent to their node in a single message, all the nodes at
+ * the same time.
+ */
+public class PresenceService {
+
+    private static final Logger log = LoggerFactory.getLogger(PresenceService.class);
+
+    private final ClusterChannel cluster;
+    private final UserLocationRegistry locations;
+    private final RpcNotificationService notificationService;
+    private final RpcConnectionRegistry connections;
+    private final long requestTimeout;
+
+    public PresenceService(ClusterChannel cluster, UserLocationRegistry locations,
+                           RpcNotificationService notificationService, long requestTimeout) {
+        this.cluster = cluster;
+        // Users of the call endpoint are located apart
+        this.locations = new NamespacedUserLocationRegistry(locations, RpcConnectionRegistry.MEDIA_USERS);
+        this.notificationService = notificationService;
+        this.connections = notificationService.getConnectionRegistry();
+        this.requestTimeout = requestTimeout;
+        cluster.register(ClusterProtocol.NOTIFY_USERS_METHOD, this::deliverNotifications);
+    }
+
+    /**
+     * Records that a user identified when connecting is in this node, so it can
+     * be found from the others
+     */
+    public void userConnected(String userId) {
+        try {
+            if (!locations.register(userId, cluster.getLocalNodeId())) {
+                log.warn("User {} is also connected to another node", userId);
+            }
+        } catch (CloudMediaException e) {
+            log.warn("Unable to record the location of user {}: {}", userId, e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets the location of a user whose connection has been closed, unless
+     * it has connected again to this node
+     */
+    public void userDisconnected(String userId) {
+        if (connections.getByUserId(RpcConnectionRegistry.MEDIA_USERS, userId) == null) {
+            locations.unregister(userId, cluster.getLocalNodeId());
+        }
+    }
+
+    /**
+     * Sends a notification to every connected user of the list, wherever it is.
+     * It waits for the other nodes up to the request timeout, so it is not
+     * called from WebSocket threads
+     *
+     * @param params builds the params of the notification of every user
+     * @return whether every user is online (and has been notified), in the
+     * order of the list
+     */
+    public Map<String, Boolean> notifyUsers(Collection<String> userIds, String method,
+                                            Function<String, JsonObject> params) {
+        final Map<String, Boolean> online = new LinkedHashMap<>();
+        final List<String> notLocal = new ArrayList<>();
+        for (String userId : userIds) {
+            if (online.containsKey(userId)) {
+                continue;
+            }
+            RpcConnection connection = connections.getByUserId(RpcConnectionRegistry.MEDIA_USERS, userId);
+            if (connection != null) {
+                notificationService.sendNotification(connection.getParticipantPrivateId(), method,
+                        params.apply(userId));
+                online.put(userId, true);
+            } else {
+                online.put(userId, false);
+                notLocal.add(userId);
+            }
+        }
+        if (notLocal.isEmpty() || cluster.getNodeIds().size() <= 1) {
+            return online;
+        }
+
+        final Map<String, JsonArray> byNode = new HashMap<>();
+        for (Map.Entry<String, String> location : locations.locateAll(notLocal).entrySet()) {
+            if (location.getValue().equals(cluster.getLocalNodeId())) {
+                // Its connection has just been closed
+                continue;
+            }
+            JsonObject notification = new JsonObject();
+            notification.addProperty(ClusterProtocol.USER_PARAM, location.getKey());
+            notification.add(ClusterProtocol.PARAMS_PARAM, params.apply(location.getKey()));
+            byNode.computeIfAbsent(location.getValue(), n -> new JsonArray()).add(notification);
+        }
+        final Map<String, CompletableFuture<JsonElement>> requests = new HashMap<>();
+        for (Map.Entry<String, JsonArray> node : byNode.entrySet()) {
+            JsonObject message = new JsonObject();
+            message.addProperty(ClusterProtocol.METHOD_PARAM, method);
+            message.add(ClusterProtocol.NOTIFICATIONS_PARAM, node.getValue());
+            requests.put(node.getKey(), cluster.request(node.getKey(), ClusterProtocol.NOTIFY_USERS_METHOD, message));
+        }
+        final long deadline = System.currentTimeMillis() + requestTimeout;
+        for (Map.Entry<String, CompletableFuture<JsonElement>> request : requests.entrySet()) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                JsonArray delivered = request.getValue().get(wait, TimeUnit.MILLISECONDS).getAsJsonArray();
+                for (JsonElement userId : delivered) {
+                    online.put(userId.getAsString(), true);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                log.warn("Notification '{}' not delivered to {} users of node '{}': {}", method,
+                        byNode.get(request.getKey()).size(), request.getKey(),
+                        e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            }
+        }
+        for (Map.Entry<String, Boolean> user : online.entrySet()) {
+            if (!user.getValue()) {
+                locations.invalidate(user.getKey());
+            }
+        }
+        return online;
+    }
+
+    /**
+     * @return the users of this node that have been notified
+     */
+    private JsonElement deliverNotifications(JsonObject message) {
+        String method = message.get(ClusterProtocol.METHOD_PARAM).getAsString();
+        JsonArray delivered = new JsonArray();
+        for (JsonElement element : message.getAsJsonArray(ClusterProtocol.NOTIFICATIONS_PARAM)) {
+            JsonObject notification = element.getAsJsonObject();
+            String userId = notification.get(ClusterProtocol.USER_PARAM).getAsString();
+            RpcConnection connection = connections.getByUserId(RpcConnectionRegistry.MEDIA_USERS, userId);
+            if (connection != null) {
+                notificationService.sendNotification(connection.getParticipantPrivateId(), method,
+                        notification.get(ClusterProtocol.PARAMS_PARAM));
+                delivered.add(userId);
+            }
+        }
+        return delivered;
+    }
+}
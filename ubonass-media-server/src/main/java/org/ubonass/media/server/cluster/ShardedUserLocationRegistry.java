@@ -0,0 +1,318 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Locations of the users spread among the signalling nodes. Every user id is
+ * owned by one node, chosen by consistent hashing, which keeps its location;
+ * the other nodes ask it through the {@link ClusterChannel}. Locations found
+ * in other nodes are cached for a while, so calls between the same users do
+ * not ask the owner again.
+ */
+public class ShardedUserLocationRegistry implements UserLocationRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedUserLocationRegistry.class);
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private static class CachedLocation {
+
+        private final String nodeId;
+        private final long expiresAt;
+
+        private CachedLocation(String nodeId, long expiresAt) {
+            this.nodeId = nodeId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ClusterChannel channel;
+    private final ConsistentHashRing ring;
+    private final InMemoryUserLocationRegistry shard = new InMemoryUserLocationRegistry();
+    private final long requestTimeout;
+
+    private final ConcurrentMap<String, CachedLocation> cache = new ConcurrentHashMap<>();
+    private final long cacheTtl;
+    private final int cacheSize;
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder remoteRequests = new LongAdder();
+    private final LongAdder remoteErrors = new LongAdder();
+    private final LongAdder staleReplaced = new LongAdder();
+
+    /**
+     * @param requestTimeout milliseconds to wait for the owner of a user
+     * @param cacheTtl       milliseconds a location found in another node is
+     *                       reused. 0 disables the cache
+     * @param cacheSize      maximum number of cached locations
+     */
+    public ShardedUserLocationRegistry(ClusterChannel channel, long requestTimeout, long cacheTtl, int cacheSize) {
+        this.channel = channel;
+        this.ring = new ConsistentHashRing(channel.getNodeIds(), VIRTUAL_NODES);
+        this.requestTimeout = requestTimeout;
+        this.cacheTtl = cacheTtl;
+        this.cacheSize = cacheSize;
+        channel.register(ClusterProtocol.REGISTER_USER_METHOD, params -> new JsonPrimitive(shard.register(
+                params.get(ClusterProtocol.USER_PARAM).getAsString(),
+                params.get(ClusterProtocol.NODE_PARAM).getAsString(),
+                optString(params, ClusterProtocol.OWNER_PARAM))));
+        channel.register(ClusterProtocol.UNREGISTER_USER_METHOD, params -> {
+            shard.unregister(params.get(ClusterProtocol.USER_PARAM).getAsString(),
+                    params.get(ClusterProtocol.NODE_PARAM).getAsString());
+            return null;
+        });
+        channel.register(ClusterProtocol.LOCATE_USER_METHOD, params -> {
+            String nodeId = shard.locate(params.get(ClusterProtocol.USER_PARAM).getAsString());
+            return nodeId != null ? new JsonPrimitive(nodeId) : null;
+        });
+        channel.register(ClusterProtocol.LOCATE_USERS_METHOD, params -> {
+            JsonObject nodes = new JsonObject();
+            for (JsonElement userId : params.getAsJsonArray(ClusterProtocol.USERS_PARAM)) {
+                String nodeId = shard.locate(userId.getAsString());
+                if (nodeId != null) {
+                    nodes.addProperty(userId.getAsString(), nodeId);
+                }
+            }
+            return nodes;
+        });
+    }
+
+    /**
+     * A user still recorded in another node is taken over if that node reports
+     * it is no longer connected there, or cannot be reached
+     */
+    @Override
+    public boolean register(String userId, String nodeId) {
+        String holder = registerInShard(userId, nodeId, null);
+        if (!nodeId.equals(holder) && !isConnected(holder, userId)) {
+            log.info("User {} recorded in node '{}' is no longer connected there", userId, holder);
+            staleReplaced.increment();
+            holder = registerInShard(userId, nodeId, holder);
+        }
+        if (!nodeId.equals(holder)) {
+            return false;
+        }
+        cache.remove(userId);
+        return true;
+    }
+
+    private String registerInShard(String userId, String nodeId, String staleNodeId) {
+        String owner = ring.getNode(userId);
+        if (owner.equals(channel.getLocalNodeId())) {
+            return shard.register(userId, nodeId, staleNodeId);
+        }
+        JsonObject params = new JsonObject();
+        params.addProperty(ClusterProtocol.USER_PARAM, userId);
+        params.addProperty(ClusterProtocol.NODE_PARAM, nodeId);
+        params.addProperty(ClusterProtocol.OWNER_PARAM, staleNodeId);
+        return call(owner, ClusterProtocol.REGISTER_USER_METHOD, params).getAsString();
+    }
+
+    private boolean isConnected(String nodeId, String userId) {
+        JsonObject params = new JsonObject();
+        params.addProperty(ClusterProtocol.USER_PARAM, userId);
+        try {
+            return call(nodeId, ClusterProtocol.HAS_USER_METHOD, params).getAsBoolean();
+        } catch (CloudMediaException e) {
+            log.warn("Unable to check user {} in node '{}': {}", userId, nodeId, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void unregister(String userId, String nodeId) {
+        cache.remove(userId);
+        String owner = ring.getNode(userId);
+        if (owner.equals(channel.getLocalNodeId())) {
+            shard.unregister(userId, nodeId);
+            return;
+        }
+        JsonObject params = new JsonObject();
+        params.addProperty(ClusterProtocol.USER_PARAM, userId);
+        params.addProperty(ClusterProtocol.NODE_PARAM, nodeId);
+        remoteRequests.increment();
+        channel.request(owner, ClusterProtocol.UNREGISTER_USER_METHOD, params).whenComplete((r, t) -> {
+            if (t != null) {
+                remoteErrors.increment();
+                log.warn("Unable to unregister user {} in node '{}': {}", userId, owner, t.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public String locate(String userId) {
+        String owner = ring.getNode(userId);
+        if (owner.equals(channel.getLocalNodeId())) {
+            return shard.locate(userId);
+        }
+        CachedLocation cached = cache.get(userId);
+        if (cached != null && cached.expiresAt > System.currentTimeMillis()) {
+            cacheHits.increment();
+            return cached.nodeId;
+        }
+        cacheMisses.increment();
+        JsonObject params = new JsonObject();
+        params.addProperty(ClusterProtocol.USER_PARAM, userId);
+        JsonElement result = call(owner, ClusterProtocol.LOCATE_USER_METHOD, params);
+        String nodeId = result != null && !result.isJsonNull() ? result.getAsString() : null;
+        if (nodeId != null) {
+            cacheLocation(userId, nodeId);
+        } else {
+            cache.remove(userId);
+        }
+        return nodeId;
+    }
+
+    /**
+     * Users not cached are asked to their owners with one request per owner,
+     * all of them sent at once
+     */
+    @Override
+    public Map<String, String> locateAll(Collection<String> userIds) {
+        final Map<String, String> nodes = new HashMap<>();
+        final Map<String, JsonArray> byOwner = new HashMap<>();
+        final long now = System.currentTimeMillis();
+        for (String userId : userIds) {
+            String owner = ring.getNode(userId);
+            if (owner.equals(channel.getLocalNodeId())) {
+                String nodeId = shard.locate(userId);
+                if (nodeId != null) {
+                    nodes.put(userId, nodeId);
+                }
+                continue;
+            }
+            CachedLocation cached = cache.get(userId);
+            if (cached != null && cached.expiresAt > now) {
+                cacheHits.increment();
+                nodes.put(userId, cached.nodeId);
+                continue;
+            }
+            cacheMisses.increment();
+            byOwner.computeIfAbsent(owner, o -> new JsonArray()).add(userId);
+        }
+        final Map<String, CompletableFuture<JsonElement>> requests = new HashMap<>();
+        for (Map.Entry<String, JsonArray> owner : byOwner.entrySet()) {
+            JsonObject params = new JsonObject();
+            params.add(ClusterProtocol.USERS_PARAM, owner.getValue());
+            remoteRequests.increment();
+            requests.put(owner.getKey(),
+                    channel.request(owner.getKey(), ClusterProtocol.LOCATE_USERS_METHOD, params));
+        }
+        final long deadline = now + requestTimeout;
+        for (Map.Entry<String, CompletableFuture<JsonElement>> request : requests.entrySet()) {
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                JsonObject located = request.getValue().get(wait, TimeUnit.MILLISECONDS).getAsJsonObject();
+                for (Map.Entry<String, JsonElement> user : located.entrySet()) {
+                    nodes.put(user.getKey(), user.getValue().getAsString());
+                    cacheLocation(user.getKey(), user.getValue().getAsString());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                remoteErrors.increment();
+                log.warn("Unable to locate {} users in node '{}': {}", byOwner.get(request.getKey()).size(),
+                        request.getKey(), e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            }
+        }
+        return nodes;
+    }
+
+    private void cacheLocation(String userId, String nodeId) {
+        if (cacheTtl <= 0) {
+            return;
+        }
+        if (cache.size() >= cacheSize) {
+            // Rough bound, entries are cheap to fetch again
+            cache.clear();
+        }
+        cache.put(userId, new CachedLocation(nodeId, System.currentTimeMillis() + cacheTtl));
+    }
+
+    @Override
+    public void invalidate(String userId) {
+        cache.remove(userId);
+    }
+
+    /**
+     * @return the node owning the location of the user
+     */
+    public String getOwner(String userId) {
+        return ring.getNode(userId);
+    }
+
+    private JsonElement call(String nodeId, String method, JsonObject params) {
+        remoteRequests.increment();
+        try {
+            return channel.request(nodeId, method, params).get(requestTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                    "Interrupted while waiting for cluster node '" + nodeId + "'");
+        } catch (ExecutionException e) {
+            remoteErrors.increment();
+            throw new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                    "Error in cluster node '" + nodeId + "' handling " + method + ": " + e.getCause().getMessage());
+        } catch (TimeoutException e) {
+            remoteErrors.increment();
+            throw new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                    "Cluster node '" + nodeId + "' did not answer " + method + " in " + requestTimeout + " ms");
+        }
+    }
+
+    private static String optString(JsonObject params, String key) {
+        JsonElement value = params.get(key);
+        return value != null && !value.isJsonNull() ? value.getAsString() : null;
+    }
+
+    @Override
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("node", channel.getLocalNodeId());
+        json.addProperty("nodes", channel.getNodeIds().size());
+        json.addProperty("shardUsers", shard.size());
+        json.addProperty("cachedLocations", cache.size());
+        json.addProperty("cacheHits", cacheHits.sum());
+        json.addProperty("cacheMisses", cacheMisses.sum());
+        json.addProperty("remoteRequests", remoteRequests.sum());
+        json.addProperty("remoteErrors", remoteErrors.sum());
+        json.addProperty("staleReplaced", staleReplaced.sum());
+        return json;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.ubonass.media.server.cluster;
+
+import com.google.gson.JsonObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Knows which signalling node every registered user is connected to
+ */
+public interface UserLocationRegistry {
+
+    /**
+     * Records that the user is connected to the given node
+     *
+     * @return false if the user is already connected to another node
+     */
+    boolean register(String userId, String nodeId);
+
+    /**
+     * Forgets the user, only if it is still recorded in the given node
+     */
+    void unregister(String userId, String nodeId);
+
+    /**
+     * @return the id of the node the user is connected to, null if it is not
+     * registered
+     */
+    String locate(String userId);
+
+    /**
+     * Locates a batch of users at once
+     *
+     * @return the node of every registered user. Users not registered, or
+     * whose location could not be obtained, are not included
+     */
+    default Map<String, String> locateAll(Collection<String> userIds) {
+        Map<String, String> nodes = new HashMap<>();
+        for (String userId : userIds) {
+            String nodeId = locate(userId);
+            if (nodeId != null) {
+                nodes.put(userId, nodeId);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Discards any copy of the location of the user kept to speed up lookups,
+     * after it turned out to be wrong
+     */
+    default void invalidate(String userId) {
+    }
+
+    JsonObject toJson();
+}
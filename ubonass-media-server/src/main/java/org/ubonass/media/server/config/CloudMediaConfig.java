@@ -0,0 +1,471 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.ubonass.media.server.kurento.TrackType;
+
+/**
+ * Tunable properties of the media server, read from application.properties
+ */
+@Component
+public class CloudMediaConfig {
+
+    /**
+     * Where JSON-RPC requests of the call handler are executed: "inline" (on the
+     * WebSocket thread that delivered them), "pooled" (platform worker threads)
+     * or "virtual" (virtual threads, when supported by the running JDK)
+     */
+    @Value("${rpc.executor.mode:pooled}")
+    private String rpcExecutorMode;
+
+    /**
+     * Worker threads shared by all the participants in pooled mode. Requests
+     * of the same participant always run one at a time, in arrival order. 0
+     * means twice the number of CPUs. Read from rpc.executor.lanes in older
+     * configurations
+     */
+    @Value("${rpc.executor.threads:${rpc.executor.lanes:0}}")
+    private int rpcExecutorThreads;
+
+    /**
+     * Maximum requests waiting for every participant
+     */
+    @Value("${rpc.executor.queue-capacity:1000}")
+    private int rpcExecutorQueueCapacity;
+
+    /**
+     * Queue the messages to every participant and write them from dedicated
+     * threads, instead of from the thread producing them
+     */
+    @Value("${rpc.notifications.queued:true}")
+    private boolean rpcNotificationsQueued;
+
+    /**
+     * Maximum notifications waiting to be written to one participant
+     */
+    @Value("${rpc.notifications.queue-capacity:1000}")
+    private int rpcNotificationsQueueCapacity;
+
+    /**
+     * Maximum notifications written in one WebSocket frame, as a JSON-RPC batch,
+     * to the participants whose protocol version accepts it.
+     * 1 sends every notification in its own frame
+     */
+    @Value("${rpc.notifications.batch-size:1}")
+    private int rpcNotificationsBatchSize;
+
+    /**
+     * What to do when the queue of a participant is full: "drop" the
+     * notification or "close" the session
+     */
+    @Value("${rpc.notifications.overflow:drop}")
+    private String rpcNotificationsOverflow;
+
+    /**
+     * Threads writing the queued messages. 0 means the number of CPUs
+     */
+    @Value("${rpc.notifications.writer-threads:0}")
+    private int rpcNotificationsWriterThreads;
+
+    /**
+     * Milliseconds a request may wait for its response before it is answered
+     * with an error. 0 disables the deadline
+     */
+    @Value("${rpc.transaction.timeout:30000}")
+    private long rpcTransactionTimeout;
+
+    /**
+     * One of every N signalling messages of a method is written to the
+     * signalling log, for the methods not listed in rpc.log.sample-rates.
+     * 0 logs none
+     */
+    @Value("${rpc.log.sample-rate:1}")
+    private int rpcLogSampleRate;
+
+    /**
+     * Replace SDP offers and answers by their length in the signalling log
+     */
+    @Value("${rpc.log.redact-sdp:true}")
+    private boolean rpcLogRedactSdp;
+
+    /**
+     * Expose the open connections and the server metrics under /admin
+     */
+    @Value("${admin.enabled:false}")
+    private boolean adminEnabled;
+
+    /**
+     * Build the media pipeline of a call asynchronously, while the callee is
+     * being notified, instead of before notifying it
+     */
+    @Value("${call.pipeline.async:true}")
+    private boolean callPipelineAsync;
+
+    /**
+     * Maximum time an accepted call waits for its media pipeline to be built
+     */
+    @Value("${call.pipeline.ready-timeout:10000}")
+    private long callPipelineReadyTimeout;
+
+    /**
+     * Maximum time an accepted call waits for the KMS to answer the offers of
+     * both participants
+     */
+    @Value("${call.negotiation-timeout:10000}")
+    private long callNegotiationTimeout;
+
+    /**
+     * Process the offer of the caller and gather its candidates while the
+     * callee is ringing, so its media connects right after the call is
+     * accepted
+     */
+    @Value("${call.early-offer:true}")
+    private boolean callEarlyOffer;
+
+    /**
+     * Milliseconds a call may ring before it is ended and its pipeline
+     * released. 0 lets it ring until answered or ended
+     */
+    @Value("${call.ring-timeout:60000}")
+    private long callRingTimeout;
+
+    /**
+     * Milliseconds an accepted call has to get its media connected before it
+     * is ended. 0 disables the deadline
+     */
+    @Value("${call.ice-connect-timeout:30000}")
+    private long callIceConnectTimeout;
+
+    /**
+     * Maximum milliseconds a call may last once accepted. 0 for no limit
+     */
+    @Value("${call.max-duration:0}")
+    private long callMaxDuration;
+
+    /**
+     * Milliseconds between checks for calls left without being ended, whose
+     * pipelines are then released. 0 disables the check
+     */
+    @Value("${call.leak-check.period:60000}")
+    private long callLeakCheckPeriod;
+
+    /**
+     * Number of pre-built media sessions kept ready in every KMS. 0 disables
+     * the pool
+     */
+    @Value("${call.pipeline.pool-size:0}")
+    private int callPipelinePoolSize;
+
+    /**
+     * How one to one calls are distributed among the KMSs: "least-loaded",
+     * "power-of-two-choices" or "weighted-round-robin"
+     */
+    @Value("${kms.selection:least-loaded}")
+    private String kmsSelection;
+
+    /**
+     * Milliseconds between corrections of the local load counters with the
+     * pipelines reported by every KMS. 0 disables them
+     */
+    @Value("${kms.load.reconcile-period:30000}")
+    private long kmsLoadReconcilePeriod;
+
+    /**
+     * Load calculation of every KMS: "max-webrtc" (number of pipelines) or
+     * "composite" (CPU, memory and calls weighted by media type)
+     */
+    @Value("${kms.load-manager:composite}")
+    private String kmsLoadManager;
+
+    @Value("${kms.load.max-cpu:85}")
+    private double kmsLoadMaxCpu;
+
+    /**
+     * In KB, 0 ignores memory usage
+     */
+    @Value("${kms.load.max-memory:0}")
+    private long kmsLoadMaxMemory;
+
+    @Value("${kms.load.max-points:10000}")
+    private int kmsLoadMaxPoints;
+
+    @Value("${kms.load.points.audio:1}")
+    private int kmsLoadPointsAudio;
+
+    @Value("${kms.load.points.video:4}")
+    private int kmsLoadPointsVideo;
+
+    @Value("${kms.load.points.all:5}")
+    private int kmsLoadPointsAll;
+
+    /**
+     * Milliseconds a disconnected KMS has to come back before its calls are
+     * moved to another KMS
+     */
+    @Value("${kms.failover.grace-period:5000}")
+    private long kmsFailoverGracePeriod;
+
+    /**
+     * WebSocket connections opened with every KMS, used in turns
+     */
+    @Value("${kms.connections-per-uri:1}")
+    private int kmsConnectionsPerUri;
+
+    /**
+     * Milliseconds between pings to every KMS connection. 0 disables them
+     */
+    @Value("${kms.health-check.period:10000}")
+    private long kmsHealthCheckPeriod;
+
+    /**
+     * Milliseconds a ping has to be answered before it counts as failed
+     */
+    @Value("${kms.health-check.timeout:5000}")
+    private long kmsHealthCheckTimeout;
+
+    /**
+     * Consecutive failed pings after which a KMS connection is replaced
+     */
+    @Value("${kms.health-check.max-failures:3}")
+    private int kmsHealthCheckMaxFailures;
+
+    /**
+     * Milliseconds the ICE candidates gathered by the server are held to be
+     * sent together in one iceCandidates notification, to the participants
+     * whose protocol version accepts it. 0 sends every candidate in its own
+     * iceCandidate notification
+     */
+    @Value("${call.ice.batch-window:0}")
+    private long callIceBatchWindow;
+
+    /**
+     * Maximum video bandwidth in kbps sent and received by each endpoint of
+     * the calls with video. 0 keeps the KMS default
+     */
+    @Value("${call.video.max-bandwidth:0}")
+    private int callVideoMaxBandwidth;
+
+    /**
+     * Maximum ICE candidates kept for every participant of a call, beyond
+     * which they are dropped
+     */
+    @Value("${call.ice.buffer-capacity:100}")
+    private int callIceBufferCapacity;
+
+    /**
+     * Id of this signalling node, unique in the cluster
+     */
+    @Value("${cluster.node-id:local}")
+    private String clusterNodeId;
+
+    /**
+     * Secret shared by the signalling nodes, required by the cluster endpoint
+     */
+    @Value("${cluster.secret:}")
+    private String clusterSecret;
+
+    /**
+     * Milliseconds to wait for the answer of another signalling node
+     */
+    @Value("${cluster.request-timeout:3000}")
+    private long clusterRequestTimeout;
+
+    /**
+     * Milliseconds the location of a user, found in another node, is reused.
+     * 0 disables the cache
+     */
+    @Value("${cluster.location-cache.ttl:30000}")
+    private long clusterLocationCacheTtl;
+
+    @Value("${cluster.location-cache.size:100000}")
+    private int clusterLocationCacheSize;
+
+    public String getRpcExecutorMode() {
+        return rpcExecutorMode;
+    }
+
+    public int getRpcExecutorThreads() {
+        return rpcExecutorThreads > 0 ? rpcExecutorThreads : Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    public int getRpcExecutorQueueCapacity() {
+        return rpcExecutorQueueCapacity;
+    }
+
+    public boolean isRpcNotificationsQueued() {
+        return rpcNotificationsQueued;
+    }
+
+    public int getRpcNotificationsQueueCapacity() {
+        return rpcNotificationsQueueCapacity;
+    }
+
+    public int getRpcNotificationsBatchSize() {
+        return rpcNotificationsBatchSize;
+    }
+
+    public String getRpcNotificationsOverflow() {
+        return rpcNotificationsOverflow;
+    }
+
+    public int getRpcNotificationsWriterThreads() {
+        return rpcNotificationsWriterThreads > 0 ? rpcNotificationsWriterThreads
+                : Runtime.getRuntime().availableProcessors();
+    }
+
+    public long getRpcTransactionTimeout() {
+        return rpcTransactionTimeout;
+    }
+
+    public int getRpcLogSampleRate() {
+        return rpcLogSampleRate;
+    }
+
+    public boolean isRpcLogRedactSdp() {
+        return rpcLogRedactSdp;
+    }
+
+    public boolean isAdminEnabled() {
+        return adminEnabled;
+    }
+
+    public boolean isCallPipelineAsync() {
+        return callPipelineAsync;
+    }
+
+    public long getCallPipelineReadyTimeout() {
+        return callPipelineReadyTimeout;
+    }
+
+    public long getCallNegotiationTimeout() {
+        return callNegotiationTimeout;
+    }
+
+    public boolean isCallEarlyOffer() {
+        return callEarlyOffer;
+    }
+
+    public long getCallRingTimeout() {
+        return callRingTimeout;
+    }
+
+    public long getCallIceConnectTimeout() {
+        return callIceConnectTimeout;
+    }
+
+    public long getCallMaxDuration() {
+        return callMaxDuration;
+    }
+
+    public long getCallLeakCheckPeriod() {
+        return callLeakCheckPeriod;
+    }
+
+    public int getCallPipelinePoolSize() {
+        return callPipelinePoolSize;
+    }
+
+    public String getKmsSelection() {
+        return kmsSelection;
+    }
+
+    public long getKmsLoadReconcilePeriod() {
+        return kmsLoadReconcilePeriod;
+    }
+
+    public String getKmsLoadManager() {
+        return kmsLoadManager;
+    }
+
+    public double getKmsLoadMaxCpu() {
+        return kmsLoadMaxCpu;
+    }
+
+    public long getKmsLoadMaxMemory() {
+        return kmsLoadMaxMemory;
+    }
+
+    public int getKmsLoadMaxPoints() {
+        return kmsLoadMaxPoints;
+    }
+
+    public int getKmsLoadPoints(TrackType type) {
+        switch (type) {
+            case AUDIO:
+                return kmsLoadPointsAudio;
+            case VIDEO:
+                return kmsLoadPointsVideo;
+            default:
+                return kmsLoadPointsAll;
+        }
+    }
+
+    public long getKmsFailoverGracePeriod() {
+        return kmsFailoverGracePeriod;
+    }
+
+    public int getKmsConnectionsPerUri() {
+        return kmsConnectionsPerUri;
+    }
+
+    public long getKmsHealthCheckPeriod() {
+        return kmsHealthCheckPeriod;
+    }
+
+    public long getKmsHealthCheckTimeout() {
+        return kmsHealthCheckTimeout;
+    }
+
+    public int getKmsHealthCheckMaxFailures() {
+        return kmsHealthCheckMaxFailures;
+    }
+
+    public long getCallIceBatchWindow() {
+        return callIceBatchWindow;
+    }
+
+    public int getCallVideoMaxBandwidth() {
+        return callVideoMaxBandwidth;
+    }
+
+    public int getCallIceBufferCapacity() {
+        return callIceBufferCapacity;
+    }
+
+    public String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public long getClusterRequestTimeout() {
+        return clusterRequestTimeout;
+    }
+
+    public long getClusterLocationCacheTtl() {
+        return clusterLocationCacheTtl;
+    }
+
+    public int getClusterLocationCacheSize() {
+        return clusterLocationCacheSize;
+    }
+}
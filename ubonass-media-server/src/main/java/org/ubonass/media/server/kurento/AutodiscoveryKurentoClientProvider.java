@@ -19,26 +19,135 @@ package org.ubonass.media.server.kurento;
 
 import org.kurento.client.KurentoClient;
 import org.kurento.client.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
 
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Locates a KMS for every pipeline using the Kurento autodiscovery rules. One
+ * client is kept per discovered KMS and shared by all the pipelines placed in
+ * it; it is closed when the last of them is released. Connections are made
+ * outside the lock, so acquiring a connected client never waits for another
+ * KMS.
+ */
 public class AutodiscoveryKurentoClientProvider implements KurentoClientProvider {
 
+  private static final Logger log = LoggerFactory.getLogger(AutodiscoveryKurentoClientProvider.class);
+
   private static final int ROOM_PIPELINE_LOAD_POINTS = 50;
 
-  @Override
-  public KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo) throws CloudMediaException {
+  private static class CachedClient {
+
+    private final String kmsUrl;
+    private final CompletableFuture<KurentoClient> client = new CompletableFuture<>();
+    private int references = 0;
+
+    private CachedClient(String kmsUrl) {
+      this.kmsUrl = kmsUrl;
+    }
+
+    private boolean isClosed() {
+      return client.isDone() && !client.isCompletedExceptionally() && client.join().isClosed();
+    }
+  }
 
-    return KurentoClient.create(Properties.of("loadPoints", ROOM_PIPELINE_LOAD_POINTS));
+  private final Map<String, CachedClient> clientsByUrl = new ConcurrentHashMap<>();
+  private final Map<KurentoClient, CachedClient> clients = new ConcurrentHashMap<>();
 
+  @Override
+  public KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo) throws CloudMediaException {
+    return acquire();
   }
 
   @Override
   public KurentoClient getKurentoClient() throws CloudMediaException {
-    return KurentoClient.create(Properties.of("loadPoints", ROOM_PIPELINE_LOAD_POINTS));
+    return acquire();
+  }
+
+  @Override
+  public void releaseKurentoClient(KurentoClient client) {
+    CachedClient cached;
+    synchronized (this) {
+      cached = clients.get(client);
+      if (cached == null || --cached.references > 0) {
+        return;
+      }
+      clients.remove(client);
+      clientsByUrl.remove(cached.kmsUrl, cached);
+    }
+    log.info("No more pipelines in KMS {}, closing its client", cached.kmsUrl);
+    client.destroy();
   }
 
   @Override
   public boolean destroyWhenUnused() {
     return true;
   }
+
+  /**
+   * @return the client of the KMS chosen by the autodiscovery rules, reusing
+   * the existing connection with it if there is one
+   */
+  private KurentoClient acquire() {
+    String kmsUrl;
+    try {
+      kmsUrl = KurentoClient.getKmsUrl(UUID.randomUUID().toString(),
+          Properties.of("loadPoints", ROOM_PIPELINE_LOAD_POINTS));
+    } catch (Exception e) {
+      throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+          "Unable to locate a KMS: " + e.getMessage());
+    }
+    CachedClient cached;
+    boolean connect = false;
+    synchronized (this) {
+      cached = clientsByUrl.get(kmsUrl);
+      if (cached == null || cached.isClosed()) {
+        if (cached != null) {
+          clients.remove(cached.client.join());
+        }
+        cached = new CachedClient(kmsUrl);
+        clientsByUrl.put(kmsUrl, cached);
+        connect = true;
+      }
+      cached.references++;
+    }
+    if (connect) {
+      connect(cached);
+    }
+    try {
+      // Callers of a KMS being connected wait for its first caller
+      return cached.client.join();
+    } catch (CompletionException e) {
+      synchronized (this) {
+        cached.references--;
+      }
+      throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+          "Unable to connect to KMS " + kmsUrl + ": " + e.getCause().getMessage());
+    }
+  }
+
+  private void connect(CachedClient cached) {
+    log.info("Connecting to discovered KMS {}", cached.kmsUrl);
+    KurentoClient client;
+    try {
+      client = KurentoClient.create(cached.kmsUrl);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        clientsByUrl.remove(cached.kmsUrl, cached);
+      }
+      cached.client.completeExceptionally(e);
+      return;
+    }
+    synchronized (this) {
+      clients.put(client, cached);
+    }
+    cached.client.complete(client);
+  }
 }
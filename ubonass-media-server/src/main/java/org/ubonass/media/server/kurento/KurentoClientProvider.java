@@ -48,5 +48,15 @@ public interface KurentoClientProvider {
    */
   KurentoClient getKurentoClient() throws CloudMediaException;
 
+  /**
+   * Notifies that a client obtained from this provider is no longer used by
+   * the caller, so the provider can close it when nobody else uses it
+   *
+   * @param client
+   *          the client, as returned by {@link #getKurentoClient()}
+   */
+  default void releaseKurentoClient(KurentoClient client) {
+  }
+
   boolean destroyWhenUnused();
 }
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import org.ubonass.media.server.kurento.TrackType;
+
+/**
+ * Scores a {@link Kms} by its most saturated resource among the CPU and
+ * memory usage sampled from the KMS and the weighted count of the calls placed
+ * in it, where each call weighs according to its {@link TrackType} (an audio
+ * call costs far less than a video one).
+ * <p>
+ * Every dimension is divided by its configured threshold, so a load of 1 means
+ * that at least one of them reached its limit and no more calls are admitted.
+ * Resources not reported by the KMS, and thresholds not greater than 0, are
+ * ignored.
+ */
+public class CompositeLoadManager implements LoadManager {
+
+    private final double maxCpu;
+    private final long maxMemory;
+    private final int maxPoints;
+    private final int[] pointsPerCall = new int[TrackType.values().length];
+
+    /**
+     * @param maxCpu    maximum CPU usage, as a percentage
+     * @param maxMemory maximum memory usage, in KB
+     * @param maxPoints maximum sum of the points of every call
+     */
+    public CompositeLoadManager(double maxCpu, long maxMemory, int maxPoints) {
+        this.maxCpu = maxCpu;
+        this.maxMemory = maxMemory;
+        this.maxPoints = maxPoints;
+        for (TrackType type : TrackType.values()) {
+            pointsPerCall[type.ordinal()] = 1;
+        }
+    }
+
+    /**
+     * @param points cost of one call of the given type
+     */
+    public CompositeLoadManager withPointsPerCall(TrackType type, int points) {
+        pointsPerCall[type.ordinal()] = points;
+        return this;
+    }
+
+    @Override
+    public double calculateLoad(Kms kms) {
+        KmsLoadTracker tracker = kms.getLoadTracker();
+        double load = 0;
+        double usedCpu = tracker.getUsedCpu();
+        if (maxCpu > 0 && usedCpu >= 0) {
+            load = Math.max(load, usedCpu / maxCpu);
+        }
+        long usedMemory = tracker.getUsedMemory();
+        if (maxMemory > 0 && usedMemory >= 0) {
+            load = Math.max(load, usedMemory / (double) maxMemory);
+        }
+        if (maxPoints > 0) {
+            load = Math.max(load, countPoints(tracker) / (double) maxPoints);
+        }
+        return Math.min(load, 1);
+    }
+
+    @Override
+    public boolean allowMoreElements(Kms kms) {
+        return calculateLoad(kms) < 1;
+    }
+
+    private int countPoints(KmsLoadTracker tracker) {
+        int points = 0;
+        int typedPipelines = 0;
+        for (TrackType type : TrackType.values()) {
+            int pipelines = tracker.getPipelines(type);
+            points += pipelines * pointsPerCall[type.ordinal()];
+            typedPipelines += pipelines;
+        }
+        // Pipelines found in the KMS but not created by this server count as full calls
+        int unknownPipelines = tracker.getPipelines() - typedPipelines;
+        if (unknownPipelines > 0) {
+            points += unknownPipelines * pointsPerCall[TrackType.ALL.ordinal()];
+        }
+        return points;
+    }
+}
@@ -17,13 +17,21 @@
 
 package org.ubonass.media.server.kurento.kms;
 
+import org.kurento.client.Continuation;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.KurentoConnectionListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FixedOneKmsManager extends KmsManager {
 
@@ -32,54 +40,269 @@ public class FixedOneKmsManager extends KmsManager {
     /*@Autowired
     SessionManager sessionManager;*/
 
-    public static final AtomicBoolean CONNECTED_TO_KMS = new AtomicBoolean(false);
-    public static final AtomicLong TIME_OF_DISCONNECTION = new AtomicLong(0);
+    /**
+     * Reconnections, which wait for the KMS. One thread per KMS, so an
+     * unreachable one does not delay the others
+     */
+    private final ScheduledExecutorService connectionScheduler;
+    /**
+     * Pings and their timeouts, which do not wait for the KMS
+     */
+    private final ScheduledExecutorService healthScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kms-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean healthCheckStarted = false;
+    private long healthCheckTimeout;
+    private int healthCheckMaxFailures;
 
     public FixedOneKmsManager(String kmsWsUri) {
         this(kmsWsUri, 1);
     }
 
     public FixedOneKmsManager(String kmsWsUri, int numKmss) {
+        this.connectionScheduler = newConnectionScheduler(numKmss);
         for (int i = 0; i < numKmss; i++) {
-            this.addKms(new Kms(KurentoClient.create(kmsWsUri),kmsWsUri));
-            this.addKms(new Kms(KurentoClient.create(kmsWsUri, new KurentoConnectionListener() {
+            this.addKms(this.connect(kmsWsUri, 1));
+        }
+    }
+
+    /**
+     * Creates a {@link Kms} for every one of the given uris
+     */
+    public FixedOneKmsManager(List<String> kmsWsUris) {
+        this(kmsWsUris, 1);
+    }
+
+    /**
+     * Creates a {@link Kms} for every one of the given uris, each one with a
+     * pool of connections
+     *
+     * @param connectionsPerUri WebSocket connections opened with every KMS
+     */
+    public FixedOneKmsManager(List<String> kmsWsUris, int connectionsPerUri) {
+        this.connectionScheduler = newConnectionScheduler(kmsWsUris.size());
+        for (String kmsWsUri : kmsWsUris) {
+            this.addKms(this.connect(kmsWsUri, Math.max(1, connectionsPerUri)));
+        }
+    }
+
+    private static ScheduledExecutorService newConnectionScheduler(int numKmss) {
+        final AtomicInteger counter = new AtomicInteger();
+        return Executors.newScheduledThreadPool(Math.max(1, numKmss), r -> {
+            Thread thread = new Thread(r, "kms-connections-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Periodically pings every connection, without waiting for the answers.
+     * Connections that fail several pings in a row are replaced by new ones,
+     * so a KMS that is only busy for a while keeps its calls
+     *
+     * @param periodMs    milliseconds between checks, 0 disables them
+     * @param timeoutMs   milliseconds a ping has to be answered
+     * @param maxFailures consecutive failed pings after which the connection
+     *                    is replaced
+     */
+    public synchronized void startHealthCheck(long periodMs, long timeoutMs, int maxFailures) {
+        if (healthCheckStarted || periodMs <= 0) {
+            return;
+        }
+        healthCheckStarted = true;
+        this.healthCheckTimeout = timeoutMs;
+        this.healthCheckMaxFailures = Math.max(1, maxFailures);
+        healthScheduler.scheduleWithFixedDelay(this::checkHealth, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void checkHealth() {
+        for (final Kms kms : getKmss()) {
+            for (final KmsConnection connection : kms.getConnections()) {
+                final KurentoClient client = connection.getClient();
+                if (client == null || !connection.isConnected() || !connection.startPing()) {
+                    // Being reconnected, or its last ping is still pending
+                    continue;
+                }
+                ping(client).whenComplete((v, t) -> pinged(kms, connection, client, t));
+            }
+        }
+    }
+
+    private CompletableFuture<Void> ping(KurentoClient client) {
+        final CompletableFuture<Void> pong = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = healthScheduler.schedule(() -> pong.completeExceptionally(
+                new TimeoutException("ping not answered in " + healthCheckTimeout + " ms")),
+                healthCheckTimeout, TimeUnit.MILLISECONDS);
+        pong.whenComplete((v, t) -> timeout.cancel(false));
+        try {
+            if (client.isClosed()) {
+                throw new IllegalStateException("client closed");
+            }
+            client.getServerManager().getUsedMemory(new Continuation<Long>() {
+                @Override
+                public void onSuccess(Long result) {
+                    pong.complete(null);
+                }
+
+                @Override
+                public void onError(Throwable cause) {
+                    pong.completeExceptionally(cause);
+                }
+            });
+        } catch (Exception e) {
+            pong.completeExceptionally(e);
+        }
+        return pong;
+    }
+
+    private void pinged(Kms kms, KmsConnection connection, KurentoClient client, Throwable error) {
+        int failures = connection.pingFinished(error == null);
+        if (error == null || connection.getClient() != client) {
+            // Answered, or replaced in the meantime
+            return;
+        }
+        if (failures < healthCheckMaxFailures) {
+            log.warn("Health check of KMS connection {} failed ({} of {}): {}", connection, failures,
+                    healthCheckMaxFailures, error.getMessage());
+            return;
+        }
+        log.warn("KMS connection {} failed {} health checks in a row, replacing it: {}", connection, failures,
+                error.getMessage());
+        connectionLost(kms, connection);
+        scheduleReconnection(kms, connection);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        connectionScheduler.shutdownNow();
+        healthScheduler.shutdownNow();
+        for (Kms kms : getKmss()) {
+            for (KmsConnection connection : kms.getConnections()) {
+                KurentoClient client = connection.getClient();
+                if (client != null) {
+                    client.destroy();
+                }
+            }
+        }
+    }
+
+    private Kms connect(String kmsWsUri, int numConnections) {
+        List<KmsConnection> connections = new ArrayList<>();
+        for (int i = 0; i < numConnections; i++) {
+            connections.add(new KmsConnection(kmsWsUri, i));
+        }
+        Kms kms = new Kms(kmsWsUri, connections);
+        for (KmsConnection connection : connections) {
+            if (!this.connect(kms, connection)) {
+                scheduleReconnection(kms, connection);
+            }
+        }
+        if (!kms.isConnected()) {
+            // Not used until a connection succeeds
+            kms.setHealthy(false);
+        }
+        return kms;
+    }
+
+    /**
+     * @return true if the connection has been established
+     */
+    private boolean connect(final Kms kms, final KmsConnection connection) {
+        final String kmsWsUri = connection.getUri();
+        try {
+            KurentoClient client = KurentoClient.create(kmsWsUri, new KurentoConnectionListener() {
 
                 @Override
                 public void reconnected(boolean isReconnected) {
-                    CONNECTED_TO_KMS.compareAndSet(false, true);
-                    /*if (!isReconnected) {
-                        // Different KMS. Reset sessions status (no Publisher or SUbscriber endpoints)
+                    boolean wasConnected = kms.isConnected();
+                    connection.setConnected(true);
+                    if (!isReconnected) {
                         log.warn("Kurento Client reconnected to a different KMS instance, with uri {}", kmsWsUri);
-                        log.warn("Updating all webrtc endpoints for active sessions");
-                        sessionManager.getSessions().forEach(s -> {
-                            ((KurentoSession) s).restartStatusInKurento();
-                        });
                     } else {
-                        // Same KMS. We can infer that openvidu-server/KMS connection has been lost, but
+                        // Same KMS. We can infer that the server/KMS connection has been lost, but
                         // not the clients/KMS connections
                         log.warn("Kurento Client reconnected to same KMS with uri {}", kmsWsUri);
-                    }*/
+                    }
+                    if (!wasConnected) {
+                        kmsReconnected(kms, isReconnected);
+                    } else if (!isReconnected) {
+                        // The others kept the KMS connected, only the objects of this client were lost
+                        kmsConnectionReplaced(kms, connection.getClient());
+                    }
                 }
 
                 @Override
                 public void disconnected() {
-                    CONNECTED_TO_KMS.compareAndSet(true, false);
-                    TIME_OF_DISCONNECTION.set(System.currentTimeMillis());
                     log.warn("Kurento Client disconnected from KMS with uri {}", kmsWsUri);
+                    connectionLost(kms, connection);
                 }
 
                 @Override
                 public void connectionFailed() {
-                    CONNECTED_TO_KMS.set(false);
                     log.warn("Kurento Client failed connecting to KMS with uri {}", kmsWsUri);
+                    connectionLost(kms, connection);
+                    // The client gives up after this, a new one is needed
+                    scheduleReconnection(kms, connection);
                 }
 
                 @Override
                 public void connected() {
-                    CONNECTED_TO_KMS.compareAndSet(false, true);
-                    log.warn("Kurento Client is now connected to KMS with uri {}", kmsWsUri);
+                    connection.setConnected(true);
+                    log.info("Kurento Client is now connected to KMS with uri {}", kmsWsUri);
                 }
-            }), kmsWsUri));
+            });
+            connection.setClient(client);
+            connection.setConnected(true);
+            connection.resetReconnectDelay();
+            return true;
+        } catch (Exception e) {
+            log.warn("Unable to connect to KMS with uri {}: {}", kmsWsUri, e.getMessage());
+            return false;
+        }
+    }
+
+    private void connectionLost(Kms kms, KmsConnection connection) {
+        if (connection.setConnected(false) && !kms.isConnected()) {
+            kms.setTimeOfDisconnection(System.currentTimeMillis());
+            kmsDisconnected(kms);
         }
     }
+
+    /**
+     * Replaces the client of the connection by a new one, retrying with
+     * exponential backoff until the KMS accepts it
+     */
+    private void scheduleReconnection(final Kms kms, final KmsConnection connection) {
+        if (!connection.startReconnecting() || connectionScheduler.isShutdown()) {
+            return;
+        }
+        long delay = connection.nextReconnectDelay();
+        log.info("Reconnecting to KMS with uri {} in {} ms", connection.getUri(), delay);
+        connectionScheduler.schedule(() -> {
+            KurentoClient old = connection.getClient();
+            if (old != null) {
+                try {
+                    old.destroy();
+                } catch (Exception e) {
+                    log.debug("Error destroying Kurento Client of {}: {}", connection, e.getMessage());
+                }
+            }
+            connection.reconnectAttemptFinished();
+            // Connected through other connections of the pool
+            boolean wasConnected = kms.isConnected();
+            if (this.connect(kms, connection)) {
+                // Objects created with the old client can not be used through the new one
+                if (wasConnected) {
+                    kmsConnectionReplaced(kms, old);
+                } else {
+                    kmsReconnected(kms, false);
+                }
+            } else {
+                scheduleReconnection(kms, connection);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 }
@@ -19,15 +19,33 @@ package org.ubonass.media.server.kurento.kms;
 
 import org.kurento.client.KurentoClient;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class Kms {
 
     private LoadManager loadManager = new MaxWebRtcLoadManager(10000);
-    private KurentoClient client;
+    private final KmsLoadTracker loadTracker = new KmsLoadTracker();
+    private final List<KmsConnection> connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+    private final AtomicLong timeOfDisconnection = new AtomicLong(0);
     private String kmsUri;
+    private int weight = 1;
+    private volatile boolean healthy = true;
 
     public Kms(KurentoClient client, String kmsUri) {
-        this.client = client;
+        this(kmsUri, Collections.singletonList(new KmsConnection(kmsUri, client)));
+    }
+
+    /**
+     * @param connections pool of connections with the KMS, used in turns
+     */
+    public Kms(String kmsUri, List<KmsConnection> connections) {
         this.kmsUri = kmsUri;
+        this.connections = Collections.unmodifiableList(new ArrayList<>(connections));
     }
 
     public void setLoadManager(LoadManager loadManager) {
@@ -42,11 +60,83 @@ public class Kms {
         return loadManager.allowMoreElements(this);
     }
 
+    public KmsLoadTracker getLoadTracker() {
+        return loadTracker;
+    }
+
     public String getUri() {
         return kmsUri;
     }
 
+    /**
+     * @return relative capacity of this KMS, used by weighted selection strategies
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the client of the next connected connection of the pool, or of
+     * any connection if none is connected
+     */
     public KurentoClient getKurentoClient() {
-        return this.client;
+        int size = connections.size();
+        int start = nextConnection.getAndIncrement() & Integer.MAX_VALUE;
+        KurentoClient fallback = null;
+        for (int i = 0; i < size; i++) {
+            KmsConnection connection = connections.get((start + i) % size);
+            KurentoClient client = connection.getClient();
+            if (client != null) {
+                if (connection.isConnected()) {
+                    return client;
+                }
+                if (fallback == null) {
+                    fallback = client;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    public List<KmsConnection> getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return true if at least one connection with the KMS is established
+     */
+    public boolean isConnected() {
+        for (KmsConnection connection : connections) {
+            if (connection.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return when the last connection with the KMS was lost, 0 if never
+     */
+    public long getTimeOfDisconnection() {
+        return timeOfDisconnection.get();
+    }
+
+    void setTimeOfDisconnection(long timeOfDisconnection) {
+        this.timeOfDisconnection.set(timeOfDisconnection);
+    }
+
+    /**
+     * @return false while the connection with the KMS is lost
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public void setHealthy(boolean healthy) {
+        this.healthy = healthy;
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import org.kurento.client.KurentoClient;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One WebSocket connection with a KMS. A {@link Kms} may keep a small pool of
+ * them, all to the same uri. When the connection cannot be established, it is
+ * retried with exponential backoff
+ */
+public class KmsConnection {
+
+    static final long INITIAL_RECONNECT_DELAY_MS = 1000;
+    static final long MAX_RECONNECT_DELAY_MS = 30000;
+
+    private final String uri;
+    private final int index;
+    private volatile KurentoClient client;
+    private final AtomicBoolean connected = new AtomicBoolean(false);
+    private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+    private final AtomicBoolean pinging = new AtomicBoolean(false);
+    private final AtomicInteger failedPings = new AtomicInteger();
+    private long reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+
+    public KmsConnection(String uri, int index) {
+        this.uri = uri;
+        this.index = index;
+    }
+
+    KmsConnection(String uri, KurentoClient client) {
+        this(uri, 0);
+        this.client = client;
+        this.connected.set(true);
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the client, null if never connected
+     */
+    public KurentoClient getClient() {
+        return client;
+    }
+
+    void setClient(KurentoClient client) {
+        this.client = client;
+    }
+
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    /**
+     * @return true if the state has changed
+     */
+    boolean setConnected(boolean connected) {
+        return this.connected.compareAndSet(!connected, connected);
+    }
+
+    /**
+     * @return true if the caller has to schedule the reconnection, false if it
+     * is already scheduled
+     */
+    boolean startReconnecting() {
+        return reconnecting.compareAndSet(false, true);
+    }
+
+    void reconnectAttemptFinished() {
+        reconnecting.set(false);
+    }
+
+    /**
+     * @return false if the previous ping has not finished yet
+     */
+    boolean startPing() {
+        return pinging.compareAndSet(false, true);
+    }
+
+    /**
+     * @return consecutive failed pings, including this one
+     */
+    int pingFinished(boolean answered) {
+        pinging.set(false);
+        if (answered) {
+            failedPings.set(0);
+            return 0;
+        }
+        return failedPings.incrementAndGet();
+    }
+
+    /**
+     * @return delay before the next connection attempt, doubled after every
+     * call up to {@link #MAX_RECONNECT_DELAY_MS}
+     */
+    synchronized long nextReconnectDelay() {
+        long delay = reconnectDelay;
+        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+        return delay;
+    }
+
+    synchronized void resetReconnectDelay() {
+        reconnectDelay = INITIAL_RECONNECT_DELAY_MS;
+        failedPings.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return uri + "#" + index + (isConnected() ? " (connected)" : " (disconnected)");
+    }
+}
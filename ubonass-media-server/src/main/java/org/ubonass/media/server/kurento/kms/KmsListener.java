@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import org.kurento.client.KurentoClient;
+
+/**
+ * Notified by a {@link KmsManager} when the connection with one of its
+ * {@link Kms} is lost or recovered
+ */
+public interface KmsListener {
+
+    /**
+     * The KMS has been marked as unhealthy: no new calls are placed in it
+     */
+    void kmsDisconnected(Kms kms);
+
+    /**
+     * @param sameInstance true if the KMS is the same instance as before the
+     *                     disconnection (its pipelines still exist), false if
+     *                     it has been restarted or replaced
+     */
+    void kmsReconnected(Kms kms, boolean sameInstance);
+
+    /**
+     * One of the connections of the KMS has been replaced while others kept
+     * it connected. The KMS is the same instance, but the objects created
+     * through the old client can no longer be used
+     */
+    void kmsConnectionReplaced(Kms kms, KurentoClient oldClient);
+}
@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import org.ubonass.media.server.kurento.TrackType;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the number of media elements of a {@link Kms} locally, updated when
+ * pipelines are created or released by this server, so that load can be
+ * calculated without querying the KMS. The counters are periodically
+ * corrected with the real values reported by the KMS (see
+ * {@link KmsManager#reconcileLoads()}), which also accounts for elements
+ * created by other applications or leaked.
+ */
+public class KmsLoadTracker {
+
+    private final AtomicInteger pipelines = new AtomicInteger();
+    private final AtomicInteger webRtcEndpoints = new AtomicInteger();
+    private final AtomicIntegerArray pipelinesByType = new AtomicIntegerArray(TrackType.values().length);
+    private final AtomicLong lastReconciliation = new AtomicLong();
+
+    /**
+     * Last CPU usage (percentage) and memory usage (KB) sampled from the KMS,
+     * negative if unknown
+     */
+    private volatile double usedCpu = -1;
+    private volatile long usedMemory = -1;
+
+    public void pipelineCreated(TrackType type, int numWebRtcEndpoints) {
+        pipelines.incrementAndGet();
+        webRtcEndpoints.addAndGet(numWebRtcEndpoints);
+        pipelinesByType.incrementAndGet(type.ordinal());
+    }
+
+    public void pipelineReleased(TrackType type, int numWebRtcEndpoints) {
+        decrement(pipelines, 1);
+        decrement(webRtcEndpoints, numWebRtcEndpoints);
+        int current;
+        do {
+            current = pipelinesByType.get(type.ordinal());
+        } while (current > 0 && !pipelinesByType.compareAndSet(type.ordinal(), current, current - 1));
+    }
+
+    /**
+     * Replaces the local pipeline count with the one reported by the KMS. The
+     * endpoint count is scaled by the same factor, as the KMS does not report it
+     * without one extra request per pipeline. The counts by type are scaled down
+     * when the KMS has fewer pipelines than they add up to (released or lost
+     * without this server knowing); pipelines beyond them are of unknown type
+     */
+    public void reconcile(int kmsPipelines) {
+        int localPipelines = pipelines.getAndSet(kmsPipelines);
+        if (localPipelines > 0) {
+            webRtcEndpoints.set((int) ((long) webRtcEndpoints.get() * kmsPipelines / localPipelines));
+        } else {
+            webRtcEndpoints.set(kmsPipelines * 2);
+        }
+        int typedPipelines = 0;
+        for (int i = 0; i < pipelinesByType.length(); i++) {
+            typedPipelines += pipelinesByType.get(i);
+        }
+        if (typedPipelines > kmsPipelines) {
+            for (int i = 0; i < pipelinesByType.length(); i++) {
+                int current;
+                do {
+                    current = pipelinesByType.get(i);
+                } while (!pipelinesByType.compareAndSet(i, current,
+                        (int) ((long) current * kmsPipelines / typedPipelines)));
+            }
+        }
+        lastReconciliation.set(System.currentTimeMillis());
+    }
+
+    public int getPipelines() {
+        return pipelines.get();
+    }
+
+    /**
+     * @return WebRTC endpoints of the pipelines, estimated after reconciliations
+     */
+    public int getWebRtcEndpoints() {
+        return webRtcEndpoints.get();
+    }
+
+    /**
+     * @return pipelines created by this server for calls of the given type,
+     * scaled down by reconciliations
+     */
+    public int getPipelines(TrackType type) {
+        return pipelinesByType.get(type.ordinal());
+    }
+
+    public double getUsedCpu() {
+        return usedCpu;
+    }
+
+    public long getUsedMemory() {
+        return usedMemory;
+    }
+
+    public void setUsedResources(double usedCpu, long usedMemory) {
+        this.usedCpu = usedCpu;
+        this.usedMemory = usedMemory;
+    }
+
+    /**
+     * @return time of the last reconciliation with the KMS, 0 if never
+     */
+    public long getLastReconciliation() {
+        return lastReconciliation.get();
+    }
+
+    private static void decrement(AtomicInteger counter, int delta) {
+        int current;
+        do {
+            current = counter.get();
+        } while (!counter.compareAndSet(current, Math.max(0, current - delta)));
+    }
+}
@@ -17,7 +17,12 @@
 
 package org.ubonass.media.server.kurento.kms;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.ServerManager;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ubonass.media.client.CloudMediaException;
@@ -28,8 +33,12 @@ import org.ubonass.media.server.kurento.KurentoClientSessionInfo;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class KmsManager implements KurentoClientProvider {
 
@@ -59,8 +68,17 @@ public abstract class KmsManager implements KurentoClientProvider {
 
     private final Logger log = LoggerFactory.getLogger(KmsManager.class);
 
-    private List<Kms> kmss = new ArrayList<Kms>();
-    private Iterator<Kms> usageIterator = null;
+    private static final int CPU_SAMPLE_INTERVAL_MS = 1000;
+
+    /**
+     * Immutable list, replaced as a whole when a Kms is added so that readers
+     * never need a lock
+     */
+    private volatile List<Kms> kmss = Collections.emptyList();
+    private final AtomicInteger usageCounter = new AtomicInteger();
+    private volatile KmsSelectionStrategy selectionStrategy = new LeastLoadedKmsSelectionStrategy();
+    private ScheduledExecutorService loadReconciler;
+    private final List<KmsListener> kmsListeners = new CopyOnWriteArrayList<>();
 
     @Override
     public KurentoClient getKurentoClient(KurentoClientSessionInfo sessionInfo) throws CloudMediaException {
@@ -76,11 +94,9 @@ public abstract class KmsManager implements KurentoClientProvider {
      *
      * @param sessionInfo session's id
      */
-    public synchronized Kms getKms(CloudMediaKurentoClientSessionInfo sessionInfo) {
-        if (usageIterator == null || !usageIterator.hasNext()) {
-            usageIterator = kmss.iterator();
-        }
-        return usageIterator.next();
+    public Kms getKms(CloudMediaKurentoClientSessionInfo sessionInfo) {
+        List<Kms> current = getAvailableKmss();
+        return current.get((usageCounter.getAndIncrement() & Integer.MAX_VALUE) % current.size());
     }
 
     /**
@@ -91,19 +107,97 @@ public abstract class KmsManager implements KurentoClientProvider {
     @Override
     public KurentoClient getKurentoClient()
             throws CloudMediaException {
-        return kmss.get(0).getKurentoClient();
+        return getKms().getKurentoClient();
     }
 
+    /**
+     * Returns the {@link Kms} where a new one to one call is placed, as chosen by
+     * the configured {@link KmsSelectionStrategy}
+     */
+    public Kms getKms() {
+        return selectionStrategy.select(getAdmittingKmss());
+    }
+
+    public List<Kms> getKmss() {
+        return kmss;
+    }
+
+    public void setSelectionStrategy(KmsSelectionStrategy selectionStrategy) {
+        this.selectionStrategy = selectionStrategy;
+    }
 
     public synchronized void addKms(Kms kms) {
-        this.kmss.add(kms);
+        List<Kms> newKmss = new ArrayList<>(this.kmss);
+        newKmss.add(kms);
+        this.kmss = Collections.unmodifiableList(newKmss);
+    }
+
+    public void addKmsListener(KmsListener listener) {
+        kmsListeners.add(listener);
     }
 
-    public synchronized Kms getLessLoadedKms() {
+    public void removeKmsListener(KmsListener listener) {
+        kmsListeners.remove(listener);
+    }
+
+    /**
+     * Marks the KMS as unhealthy, so no new calls are placed in it, and
+     * notifies the listeners
+     */
+    protected void kmsDisconnected(Kms kms) {
+        if (!kms.isHealthy()) {
+            return;
+        }
+        kms.setHealthy(false);
+        log.warn("KMS {} marked as unhealthy", kms.getUri());
+        for (KmsListener listener : kmsListeners) {
+            try {
+                listener.kmsDisconnected(kms);
+            } catch (Exception e) {
+                log.error("Error notifying disconnection of KMS {}", kms.getUri(), e);
+            }
+        }
+    }
+
+    /**
+     * Marks the KMS as healthy again and notifies the listeners
+     *
+     * @param sameInstance false if the KMS has been restarted, or all its
+     *                     connections replaced, and its pipelines can no longer
+     *                     be used
+     */
+    protected void kmsReconnected(Kms kms, boolean sameInstance) {
+        kms.setHealthy(true);
+        log.info("KMS {} healthy again (same instance: {})", kms.getUri(), sameInstance);
+        for (KmsListener listener : kmsListeners) {
+            try {
+                listener.kmsReconnected(kms, sameInstance);
+            } catch (Exception e) {
+                log.error("Error notifying reconnection of KMS {}", kms.getUri(), e);
+            }
+        }
+    }
+
+    /**
+     * Notifies the listeners that a connection of the KMS has been replaced
+     * while the KMS was still connected through others
+     */
+    protected void kmsConnectionReplaced(Kms kms, KurentoClient oldClient) {
+        log.info("Connection with KMS {} replaced", kms.getUri());
+        for (KmsListener listener : kmsListeners) {
+            try {
+                listener.kmsConnectionReplaced(kms, oldClient);
+            } catch (Exception e) {
+                log.error("Error notifying replaced connection of KMS {}", kms.getUri(), e);
+            }
+        }
+    }
+
+    public Kms getLessLoadedKms() {
         return Collections.min(getKmsLoads()).kms;
     }
 
-    public synchronized Kms getNextLessLoadedKms() {
+    public Kms getNextLessLoadedKms() {
         List<KmsLoad> sortedLoads = getKmssSortedByLoad();
         if (sortedLoads.size() > 1) {
             return sortedLoads.get(1).kms;
@@ -112,12 +206,139 @@ public abstract class KmsManager implements KurentoClientProvider {
         }
     }
 
-    public synchronized List<KmsLoad> getKmssSortedByLoad() {
+    public List<KmsLoad> getKmssSortedByLoad() {
         List<KmsLoad> kmsLoads = getKmsLoads();
         Collections.sort(kmsLoads);
         return kmsLoads;
     }
 
+    /**
+     * Periodically corrects the load counters of every {@link Kms} with the
+     * number of pipelines reported by the KMS itself
+     *
+     * @param periodMs milliseconds between reconciliations
+     */
+    public synchronized void startLoadReconciliation(long periodMs) {
+        if (loadReconciler != null || periodMs <= 0) {
+            return;
+        }
+        loadReconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kms-load-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loadReconciler.scheduleWithFixedDelay(this::reconcileLoads, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void reconcileLoads() {
+        for (Kms kms : kmss) {
+            if (!kms.isConnected()) {
+                continue;
+            }
+            try {
+                ServerManager serverManager = kms.getKurentoClient().getServerManager();
+                int pipelines = serverManager.getPipelines().size();
+                kms.getLoadTracker().reconcile(pipelines);
+                double usedCpu = sampleUsedCpu(kms.getKurentoClient(), serverManager);
+                long usedMemory = serverManager.getUsedMemory();
+                kms.getLoadTracker().setUsedResources(usedCpu, usedMemory);
+                log.trace("Reconciled load of kms {}: {} pipelines, {} WebRTC endpoints, {}% CPU, {} KB",
+                        kms.getUri(), pipelines, kms.getLoadTracker().getWebRtcEndpoints(), usedCpu, usedMemory);
+            } catch (Throwable e) {
+                log.warn("Error counting KurentoClient pipelines of kms {}: {}", kms.getUri(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The KMS reports its CPU usage through ServerManager.getUsedCpu, which is
+     * not part of the Java client API, so it is invoked with a raw request
+     *
+     * @return CPU usage percentage, or -1 if the KMS does not report it
+     */
+    private double sampleUsedCpu(KurentoClient client, ServerManager serverManager) {
+        try {
+            JsonObject operationParams = new JsonObject();
+            operationParams.addProperty("interval", CPU_SAMPLE_INTERVAL_MS);
+            JsonObject params = new JsonObject();
+            params.addProperty("object", serverManager.getId());
+            params.addProperty("operation", "getUsedCpu");
+            params.add("operationParams", operationParams);
+            Response<JsonElement> response = client.sendJsonRpcRequest(new Request<>("invoke", params));
+            if (response.isError() || response.getResult() == null) {
+                return -1;
+            }
+            return response.getResult().getAsJsonObject().get("value").getAsDouble();
+        } catch (Exception e) {
+            log.trace("Unable to sample CPU usage: {}", e.getMessage());
+            return -1;
+        }
+    }
+
+    public synchronized void close() {
+        if (loadReconciler != null) {
+            loadReconciler.shutdownNow();
+            loadReconciler = null;
+        }
+    }
+
+    /**
+     * @return the Kms whose load manager allows more elements
+     * @throws CloudMediaException if all of them are saturated
+     */
+    private List<Kms> getAdmittingKmss() {
+        List<Kms> current = getAvailableKmss();
+        List<Kms> admitting = null;
+        for (int i = 0; i < current.size(); i++) {
+            Kms kms = current.get(i);
+            if (!kms.allowMoreElements()) {
+                if (admitting == null) {
+                    admitting = new ArrayList<>(current.subList(0, i));
+                }
+            } else if (admitting != null) {
+                admitting.add(kms);
+            }
+        }
+        if (admitting == null) {
+            // Same list instance when nothing is filtered out, selection strategies cache by it
+            return current;
+        }
+        if (admitting.isEmpty()) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "All media servers are saturated, no more calls admitted");
+        }
+        return admitting;
+    }
+
+    /**
+     * @return the healthy Kms, the same list instance if all of them are
+     */
+    private List<Kms> getAvailableKmss() {
+        List<Kms> current = this.kmss;
+        if (current.isEmpty()) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE, "No KMS available");
+        }
+        List<Kms> healthy = null;
+        for (int i = 0; i < current.size(); i++) {
+            Kms kms = current.get(i);
+            if (!kms.isHealthy()) {
+                if (healthy == null) {
+                    healthy = new ArrayList<>(current.subList(0, i));
+                }
+            } else if (healthy != null) {
+                healthy.add(kms);
+            }
+        }
+        if (healthy == null) {
+            return current;
+        }
+        if (healthy.isEmpty()) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "No healthy KMS available, all media servers are disconnected");
+        }
+        return healthy;
+    }
+
     private List<KmsLoad> getKmsLoads() {
         ArrayList<KmsLoad> kmsLoads = new ArrayList<>();
         for (Kms kms : kmss) {
@@ -0,0 +1,50 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import java.util.List;
+
+/**
+ * Chooses the {@link Kms} where a new one to one call is placed. Implementations
+ * are called concurrently and must not block.
+ */
+public interface KmsSelectionStrategy {
+
+    /**
+     * @param kmss candidates, never empty. The list is not modified after being
+     *             passed, so implementations may cache data derived from it
+     */
+    Kms select(List<Kms> kmss);
+
+    /**
+     * @param name one of "least-loaded", "power-of-two-choices" or
+     *             "weighted-round-robin"
+     */
+    static KmsSelectionStrategy forName(String name) {
+        switch (name.trim().toLowerCase()) {
+            case "least-loaded":
+                return new LeastLoadedKmsSelectionStrategy();
+            case "power-of-two-choices":
+                return new PowerOfTwoChoicesKmsSelectionStrategy();
+            case "weighted-round-robin":
+                return new WeightedRoundRobinKmsSelectionStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown KMS selection strategy '" + name + "'");
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import java.util.List;
+
+/**
+ * Places every call in the {@link Kms} with the lowest load
+ */
+public class LeastLoadedKmsSelectionStrategy implements KmsSelectionStrategy {
+
+    @Override
+    public Kms select(List<Kms> kmss) {
+        Kms selected = kmss.get(0);
+        if (kmss.size() == 1) {
+            return selected;
+        }
+        double minLoad = selected.getLoad();
+        for (int i = 1; i < kmss.size(); i++) {
+            Kms kms = kmss.get(i);
+            double load = kms.getLoad();
+            if (load < minLoad) {
+                minLoad = load;
+                selected = kms;
+            }
+        }
+        return selected;
+    }
+}
@@ -17,13 +17,8 @@
 
 package org.ubonass.media.server.kurento.kms;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 public class MaxWebRtcLoadManager implements LoadManager {
 
-    private static final Logger log = LoggerFactory.getLogger(MaxWebRtcLoadManager.class);
-
     private int maxWebRtcPerKms;
 
     public MaxWebRtcLoadManager(int maxWebRtcPerKms) {
@@ -45,12 +40,7 @@ public class MaxWebRtcLoadManager implements LoadManager {
         return countWebRtcEndpoints(kms) < maxWebRtcPerKms;
     }
 
-    private synchronized int countWebRtcEndpoints(Kms kms) {
-        try {
-            return kms.getKurentoClient().getServerManager().getPipelines().size();
-        } catch (Throwable e) {
-            log.warn("Error counting KurentoClient pipelines", e);
-            return 0;
-        }
+    private int countWebRtcEndpoints(Kms kms) {
+        return kms.getLoadTracker().getPipelines();
     }
 }
@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Picks two random {@link Kms} and places the call in the less loaded of them.
+ * It only needs two load values per call and avoids sending every new call to
+ * the same node when loads are reported with some delay.
+ */
+public class PowerOfTwoChoicesKmsSelectionStrategy implements KmsSelectionStrategy {
+
+    @Override
+    public Kms select(List<Kms> kmss) {
+        int size = kmss.size();
+        if (size == 1) {
+            return kmss.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if (second >= first) {
+            second++;
+        }
+        Kms a = kmss.get(first);
+        Kms b = kmss.get(second);
+        return a.getLoad() <= b.getLoad() ? a : b;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.kurento.kms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cycles through the {@link Kms} giving each one a number of consecutive turns
+ * equal to its weight. The sequence is precomputed for every list of
+ * candidates, so selecting is a single atomic increment.
+ */
+public class WeightedRoundRobinKmsSelectionStrategy implements KmsSelectionStrategy {
+
+    private static class Schedule {
+
+        private final List<Kms> kmss;
+        private final Kms[] turns;
+
+        private Schedule(List<Kms> kmss) {
+            this.kmss = kmss;
+            List<Kms> turnList = new ArrayList<>();
+            for (Kms kms : kmss) {
+                for (int i = 0; i < Math.max(1, kms.getWeight()); i++) {
+                    turnList.add(kms);
+                }
+            }
+            this.turns = turnList.toArray(new Kms[0]);
+        }
+    }
+
+    private final AtomicLong counter = new AtomicLong();
+    private volatile Schedule schedule;
+
+    @Override
+    public Kms select(List<Kms> kmss) {
+        Schedule current = schedule;
+        if (current == null || current.kmss != kmss) {
+            // Racing threads may build the same schedule twice, which is harmless
+            current = new Schedule(kmss);
+            schedule = current;
+        }
+        return current.turns[(int) ((counter.getAndIncrement() & Long.MAX_VALUE) % current.turns.length)];
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.ubonass.media.server.call.CallRegistry;
+import org.ubonass.media.server.call.CallSession;
+import org.ubonass.media.server.cluster.UserLocationRegistry;
+import org.ubonass.media.server.config.CloudMediaConfig;
+import org.ubonass.media.server.rpc.RpcConnectionRegistry;
+import org.ubonass.media.server.rpc.RpcNotificationService;
+
+/**
+ * On demand views of the server state, which is no longer dumped to the log
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminRestController {
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    @Autowired
+    private CloudMediaConfig config;
+
+    @Autowired
+    private RpcNotificationService notificationService;
+
+    @Autowired
+    private RpcConnectionRegistry connections;
+
+    @Autowired
+    private UserLocationRegistry locations;
+
+    @Autowired
+    private CallRegistry calls;
+
+    /**
+     * @return a page of the open connections, at most 1000
+     */
+    @RequestMapping(value = "/connections", method = RequestMethod.GET)
+    public ResponseEntity<String> getConnections(@RequestParam(value = "offset", defaultValue = "0") int offset,
+                                                 @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        if (!config.isAdminEnabled()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("total", connections.size());
+        json.add("content", connections.toJson(Math.max(offset, 0), Math.min(Math.max(limit, 0), MAX_PAGE_SIZE)));
+        return ok(json);
+    }
+
+    /**
+     * @return a page of the calls of this node, at most 1000
+     */
+    @RequestMapping(value = "/calls", method = RequestMethod.GET)
+    public ResponseEntity<String> getCalls(@RequestParam(value = "offset", defaultValue = "0") int offset,
+                                           @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        if (!config.isAdminEnabled()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        JsonArray content = new JsonArray();
+        int index = 0;
+        int max = Math.min(Math.max(limit, 0), MAX_PAGE_SIZE);
+        for (CallSession call : calls.getCalls()) {
+            if (content.size() >= max) {
+                break;
+            }
+            if (index++ >= offset) {
+                content.add(call.toJson());
+            }
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("total", calls.size());
+        json.add("content", content);
+        return ok(json);
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public ResponseEntity<String> getMetrics() {
+        if (!config.isAdminEnabled()) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        JsonObject json = new JsonObject();
+        json.add("connections", connections.toJson());
+        json.add("outbound", notificationService.getOutboundMetrics());
+        json.add("transactions", notificationService.getTransactionMetrics());
+        json.add("locations", locations.toJson());
+        json.add("calls", calls.toJson());
+        json.add("signallingLog", notificationService.getSignallingLogger().toJson());
+        return ok(json);
+    }
+
+    private ResponseEntity<String> ok(JsonElement json) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        return new ResponseEntity<>(json.toString(), headers, HttpStatus.OK);
+    }
+}
@@ -3,10 +3,17 @@ package org.ubonass.media.server.rpc;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.kurento.client.Continuation;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.MediaState;
+import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.message.Request;
 import org.slf4j.Logger;
@@ -15,16 +22,39 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.ubonass.media.client.CloudMediaException;
 import org.ubonass.media.client.CloudMediaException.Code;
 import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.call.CallRegistry;
+import org.ubonass.media.server.call.CallSession;
+import org.ubonass.media.server.call.IceCandidateBatcher;
+import org.ubonass.media.server.call.RemoteUserRpcConnection;
+import org.ubonass.media.server.call.SdpAnswerGate;
 import org.ubonass.media.server.call.UserMediaSession;
+import org.ubonass.media.server.call.UserMediaSessionFactory;
 import org.ubonass.media.server.call.UserRpcConnection;
 import org.ubonass.media.server.call.UserRpcRegistry;
+import org.ubonass.media.server.cluster.ClusterProtocol;
+import org.ubonass.media.server.config.CloudMediaConfig;
 import org.ubonass.media.server.kurento.KurentoClientProvider;
+import org.ubonass.media.server.kurento.TrackType;
+import org.ubonass.media.server.kurento.kms.Kms;
+import org.ubonass.media.server.kurento.kms.KmsListener;
 import org.ubonass.media.server.utils.RandomStringGenerator;
 
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
-public class CallRpcHandler extends RpcHandler {
+public class CallRpcHandler extends RpcHandler implements KmsListener {
 
     private static final Logger logger = LoggerFactory.getLogger(CallRpcHandler.class);
 
@@ -37,56 +67,126 @@ public class CallRpcHandler extends RpcHandler {
     @Autowired
     private KurentoClientProvider kcProvider;
 
+    @Autowired
+    private CloudMediaConfig config;
+
+    @Autowired
+    private UserMediaSessionFactory mediaSessionFactory;
+
+    /**
+     * Calls of this node, owners of their media sessions
+     */
+    @Autowired
+    private CallRegistry calls;
+
+    private final RpcMethodRegistry methods = new RpcMethodRegistry();
+
+    /**
+     * Requests about a call, handled by the node where the call was started
+     */
+    private static final Set<String> RELAYED_METHODS = new HashSet<>(Arrays.asList(
+            ProtocolElements.ONCALL_METHOD,
+            ProtocolElements.ONICECANDIDATE_METHOD,
+            ProtocolElements.ONICECANDIDATES_METHOD,
+            ProtocolElements.CALL_STOP_METHOD));
+
+    /**
+     * Calls of a disconnected KMS waiting to be moved to another one
+     */
+    private final Map<Kms, ScheduledFuture<?>> pendingFailovers = new ConcurrentHashMap<>();
+
     /**
-     * 每次建立视频或者音频通信后有一个唯一的KurentoSession
-     * Key为房间号,如果不是room则随机生成
+     * Runs the delayed tasks of the calls: failovers, leak checks and ICE
+     * candidate batches
      */
-    private Map<String, UserMediaSession> userMediaSessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService callScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "call-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CallRpcHandler() {
+        methods.register(ProtocolElements.REGISTER_METHOD, this::register)
+                .register(ProtocolElements.CALL_METHOD, this::call,
+                        ProtocolElements.CALL_TARGETUSER_PARAM,
+                        ProtocolElements.CALL_FROMUSER_PARAM,
+                        ProtocolElements.CALL_SDPOFFER_PARAM)
+                .register(ProtocolElements.ONCALL_METHOD, this::onCall,
+                        ProtocolElements.ONCALL_EVENT_PARAM)
+                .register(ProtocolElements.ONICECANDIDATE_METHOD, this::onIceCandidate,
+                        ProtocolElements.ONICECANDIDATE_CANDIDATE_PARAM,
+                        ProtocolElements.ONICECANDIDATE_SDPMIDPARAM,
+                        ProtocolElements.ONICECANDIDATE_SDPMLINEINDEX_PARAM)
+                .register(ProtocolElements.ONICECANDIDATES_METHOD, this::onIceCandidates,
+                        ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM)
+                .register(ProtocolElements.CALL_STOP_METHOD, this::stop);
+    }
 
     @Override
     public void handleRequest(Transaction transaction,
                               Request<JsonObject> request) throws Exception {
-        super.handleRequest(transaction, request);
         String participantPrivateId =
                 getParticipantPrivateIdByTransaction(transaction);
-        logger.info("WebSocket session #{} - Request: {}", participantPrivateId, request);
+        notificationService.getSignallingLogger().request(participantPrivateId, request);
+
+        RpcMethodRegistry.RpcMethod method = methods.getMethod(request.getMethod());
+        if (method == null) {
+            logger.warn("Unrecognized method '{}' requested by participant with privateId {}",
+                    request.getMethod(), participantPrivateId);
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Unrecognized method '" + request.getMethod() + "'");
+        }
+
         RpcConnection rpcConnection;
         if (ProtocolElements.REGISTER_METHOD.equals(request.getMethod())) {
-            // Store new RpcConnection information if method 'keepLive'
+            // Store new RpcConnection information if method 'register'
             rpcConnection = notificationService.newRpcConnection(transaction, request);
         } else if (notificationService.getRpcConnection(participantPrivateId) == null) {
-            // Throw exception if any method is called before 'joinCloud'
+            // Throw exception if any method is called before 'register'
             logger.warn(
-                    "No connection found for participant with privateId {} when trying to execute method '{}'. Method 'Session.connect()' must be the first operation called in any session",
+                    "No connection found for participant with privateId {} when trying to execute method '{}'. Method 'register' must be the first operation called in any session",
                     participantPrivateId, request.getMethod());
             throw new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
                     "No connection found for participant with privateId " + participantPrivateId
-                            + ". Method 'Session.connect()' must be the first operation called in any session");
+                            + ". Method 'register' must be the first operation called in any session");
         }
 
         rpcConnection = notificationService.addTransaction(transaction, request);
 
         transaction.startAsync();
 
-        switch (request.getMethod()) {
-            case ProtocolElements.REGISTER_METHOD:
-                register(rpcConnection, request);
-                break;
-            case ProtocolElements.CALL_METHOD:
-                call(rpcConnection, request);
-                break;
-            case ProtocolElements.ONCALL_METHOD:
-                onCall(rpcConnection, request);
-                break;
-            case ProtocolElements.ONICECANDIDATE_METHOD:
-                onIceCandidate(rpcConnection, request);
-                break;
-            /*case ProtocolElements.CALL_STOP_METHOD:
-                stop(rpcConnection, request);
-                break;*/
-            default:
-                break;
+        execute(method, rpcConnection, request);
+    }
+
+    @Override
+    protected void dispatch(RpcMethodRegistry.RpcMethod method,
+                            RpcConnection rpcConnection, Request<JsonObject> request) throws Exception {
+        if (RELAYED_METHODS.contains(method.getName())) {
+            UserRpcConnection user = registry.getByUserRpcConnection(rpcConnection);
+            String owner = user != null ? user.getCallOwnerNode() : null;
+            if (owner != null) {
+                // The call is handled by the node of the caller
+                registry.relay(user, method.getName(), request.getParams());
+                if (endsCall(request)) {
+                    // The node of the call does not notify the user ending it
+                    user.callOwnerGone(owner);
+                }
+                acknowledge(rpcConnection, request);
+                return;
+            }
         }
+        super.dispatch(method, rpcConnection, request);
+    }
+
+    private static boolean endsCall(Request<JsonObject> request) {
+        if (ProtocolElements.CALL_STOP_METHOD.equals(request.getMethod())) {
+            return true;
+        }
+        JsonElement event = request.getParams() != null ?
+                request.getParams().get(ProtocolElements.ONCALL_EVENT_PARAM) : null;
+        return ProtocolElements.ONCALL_METHOD.equals(request.getMethod()) && event != null
+                && (ProtocolElements.ONCALL_EVENT_REJECT.equals(event.getAsString())
+                || ProtocolElements.ONCALL_EVENT_HANGUP.equals(event.getAsString()));
     }
 
     private void register(RpcConnection rpcConnection, Request<JsonObject> request) {
@@ -101,18 +201,23 @@ public class CallRpcHandler extends RpcHandler {
             result.addProperty(ProtocolElements.REGISTER_TYPE_PARAM, ProtocolElements.REGISTER_TYPE_REJECTED);
             result.addProperty(ProtocolElements.REGISTER_MESSAGE_PARAM, responseMsg);
         } else {
+            if (request.getParams().has(ProtocolElements.REGISTER_PROTOCOLVERSION_PARAM)) {
+                // Copied by the user connection
+                int version = Math.min(getIntParam(request, ProtocolElements.REGISTER_PROTOCOLVERSION_PARAM),
+                        ProtocolElements.PROTOCOL_VERSION);
+                rpcConnection.setProtocolVersion(version);
+                result.addProperty(ProtocolElements.REGISTER_PROTOCOLVERSION_PARAM, version);
+            }
             UserRpcConnection user = new UserRpcConnection(rpcConnection, userId);
             if (userId.isEmpty()) {
                 responseMsg = "rejected: empty user name";
                 result.addProperty(ProtocolElements.REGISTER_TYPE_PARAM, ProtocolElements.REGISTER_TYPE_REJECTED);
                 result.addProperty(ProtocolElements.REGISTER_MESSAGE_PARAM, responseMsg);
-            } else if (registry.exists(userId)) {
+            } else if (!registry.register(user)) {
                 responseMsg = "rejected: user '" + userId + "' already registered";
                 result.addProperty(ProtocolElements.REGISTER_TYPE_PARAM, ProtocolElements.REGISTER_TYPE_REJECTED);
                 result.addProperty(ProtocolElements.REGISTER_MESSAGE_PARAM, responseMsg);
             } else {
-                logger.info("register use........");
-                registry.register(user);
                 result.addProperty(ProtocolElements.REGISTER_TYPE_PARAM, ProtocolElements.REGISTER_TYPE_ACCEPTD);
             }
         }
@@ -120,6 +225,14 @@ public class CallRpcHandler extends RpcHandler {
         notificationService.sendResponse(rpcConnection.getParticipantPrivateId(), request.getId(), result);
     }
 
+    /**
+     * Users identified when connecting are registered as with 'register'
+     */
+    @Override
+    protected boolean bindUser(String userId, RpcConnection connection) {
+        return registry.register(new UserRpcConnection(connection, userId));
+    }
+
     private void call(RpcConnection rpcConnection, Request<JsonObject> request) {
         String targetId = getStringParam(request, ProtocolElements.CALL_TARGETUSER_PARAM);
         String fromId = getStringParam(request, ProtocolElements.CALL_FROMUSER_PARAM);
@@ -127,48 +240,127 @@ public class CallRpcHandler extends RpcHandler {
         if (request.getParams().has(ProtocolElements.CALL_MEDIA_PARAM))
             media = getStringParam(request, ProtocolElements.CALL_MEDIA_PARAM);
         UserRpcConnection caller = registry.getByUserRpcConnection(rpcConnection);
+        if (caller == null) {
+            throw new CloudMediaException(Code.USER_NOT_FOUND_ERROR_CODE,
+                    "Method 'register' must be called before '" + ProtocolElements.CALL_METHOD + "'");
+        }
         JsonObject result = new JsonObject();
-        if (registry.exists(targetId)) {
-
-            logger.info("exists target user {}", targetId);
-
+        // Users of other nodes are called through a stand-in
+        UserRpcConnection callee = registry.getByUserId(targetId);
+        if (callee != null && callee.isInCall()
+                && (callee.getSessionId() == null || !callee.getSessionId().equals(caller.getSessionId()))) {
+            // In another call, which is left alone
+            rejectBusy(caller, request, targetId);
+        } else if (callee != null) {
+            if (caller.getSessionId() != null) {
+                // A new call ends the current one
+                endCall(caller.getSessionId(), CallSession.EndReason.HANGUP, caller,
+                        ProtocolElements.ONCALL_METHOD, hangupEvent(null));
+            }
+            caller.clear();
             caller.setSdpOffer(getStringParam(request, ProtocolElements.CALL_SDPOFFER_PARAM));
             caller.setCallingTo(targetId);
             //生成session
             String sessionId = RandomStringGenerator.generateRandomChain();
-            UserMediaSession one2OneSession =
-                    new UserMediaSession(kcProvider.getKurentoClient());
-            userMediaSessions.putIfAbsent(sessionId, one2OneSession);
             caller.setSessionId(sessionId);//保存sessionId
+            // Asynchronously built pipelines are completed while the callee is ringing
+            CallSession call = calls.start(sessionId, fromId, targetId,
+                    mediaSessionFactory.createSession(trackType(media)));
+            if (call == null) {
+                caller.clear();
+                throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE, "Duplicated call session " + sessionId);
+            }
+            if (!callee.ring(fromId, sessionId)) {
+                // Called by someone else in the meantime
+                endCall(sessionId, CallSession.EndReason.REJECTED, caller, null, null);
+                rejectBusy(caller, request, targetId);
+                return;
+            }
+            if (config.isCallEarlyOffer()) {
+                processCallerOfferEarly(call, caller, caller.getSdpOffer());
+            }
 
-            UserRpcConnection callee = registry.getByUserId(targetId);
-            callee.setCallingFrom(fromId);
-            callee.setSessionId(sessionId);
             JsonObject notify = new JsonObject();
-
-            logger.info("start send incoming cal to  target user {}", targetId);
-
             notify.addProperty(ProtocolElements.INCOMINGCALL_FROMUSER_PARAM, fromId);
             if (media != null)//如果未空表示全部
                 notify.addProperty(ProtocolElements.INCOMINGCALL_MEDIA_PARAM, media);
+            if (callee instanceof RemoteUserRpcConnection) {
+                // Whether the callee is busy is only known by its node
+                ringRemote(caller, (RemoteUserRpcConnection) callee, sessionId, request, notify);
+                return;
+            }
             notificationService.sendNotification(
                     callee.getParticipantPrivateId(), ProtocolElements.INCOMINGCALL_METHOD, notify);
 
-            logger.info("end send incoming cal to  target user {}", targetId);
-
             result.addProperty("method", ProtocolElements.CALL_METHOD);
             result.addProperty(ProtocolElements.CALL_RESPONSE_PARAM, "OK");
 
             notificationService.sendResponse(caller.getParticipantPrivateId(), request.getId(), result);
 
         } else {
+            rejectNotRegistered(caller, request, targetId);
+        }
+    }
+
+    /**
+     * Rings a callee connected to another node. The call is answered once that
+     * node has decided whether the callee is busy
+     */
+    private void ringRemote(final UserRpcConnection caller, final RemoteUserRpcConnection callee,
+                            final String sessionId, final Request<JsonObject> request, JsonObject notify) {
+        registry.ring(callee, ProtocolElements.INCOMINGCALL_METHOD, notify)
+                .thenAccept(state -> runAsUser(caller, () -> {
+            if (!ClusterProtocol.RING_RINGING.equals(state)) {
+                endCall(sessionId, CallSession.EndReason.REJECTED, caller, null, null);
+                if (ClusterProtocol.RING_BUSY.equals(state)) {
+                    rejectBusy(caller, request, callee.getUserId());
+                } else {
+                    rejectNotRegistered(caller, request, callee.getUserId());
+                }
+                return;
+            }
+            if (!sessionId.equals(caller.getSessionId())) {
+                // Ended while ringing, maybe before the callee's node knew about it
+                RemoteUserRpcConnection rung = registry.getRemoteUser(callee.getUserId(), callee.getNodeId());
+                notificationService.sendNotification(rung.getParticipantPrivateId(),
+                        ProtocolElements.ONCALL_METHOD, hangupEvent(null));
+            }
+            JsonObject result = new JsonObject();
             result.addProperty("method", ProtocolElements.CALL_METHOD);
-            result.addProperty(ProtocolElements.CALL_RESPONSE_PARAM,
-                    "rejected: user '" + targetId + "' is not registered");
-            logger.info("rejected send incoming call to {} user,reason its not registered", targetId);
-            notificationService.sendResponse(
-                    caller.getParticipantPrivateId(), request.getId(), result);
+            result.addProperty(ProtocolElements.CALL_RESPONSE_PARAM, "OK");
+            notificationService.sendResponse(caller.getParticipantPrivateId(), request.getId(), result);
+        }));
+    }
+
+    private void rejectNotRegistered(UserRpcConnection caller, Request<JsonObject> request, String targetId) {
+        JsonObject result = new JsonObject();
+        result.addProperty("method", ProtocolElements.CALL_METHOD);
+        result.addProperty(ProtocolElements.CALL_RESPONSE_PARAM, "rejected: user '" + targetId + "' is not registered");
+        logger.info("Call from '{}' to '{}' rejected, the callee is not registered", caller.getUserId(), targetId);
+        notificationService.sendResponse(caller.getParticipantPrivateId(), request.getId(), result);
+    }
+
+    private void rejectBusy(UserRpcConnection caller, Request<JsonObject> request, String targetId) {
+        JsonObject result = new JsonObject();
+        result.addProperty("method", ProtocolElements.CALL_METHOD);
+        result.addProperty(ProtocolElements.CALL_RESPONSE_PARAM, "rejected: user '" + targetId + "' is busy");
+        logger.info("Call from '{}' to '{}' rejected, the callee is in another call", caller.getUserId(), targetId);
+        notificationService.sendResponse(caller.getParticipantPrivateId(), request.getId(), result);
+    }
+
+    /**
+     * @param media media param of a call, audio, video or all
+     * @return the media the pipeline of the call is built for, all if unknown
+     */
+    private static TrackType trackType(String media) {
+        if (media != null) {
+            for (TrackType type : TrackType.values()) {
+                if (type.name().equalsIgnoreCase(media)) {
+                    return type;
+                }
+            }
         }
+        return TrackType.ALL;
     }
 
     private void onCall(RpcConnection rpcConnection, Request<JsonObject> request) {
@@ -183,7 +375,12 @@ public class CallRpcHandler extends RpcHandler {
             case ProtocolElements.ONCALL_EVENT_HANGUP:
                 onCallHangupProcess(rpcConnection, request);
                 break;
+            default:
+                throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                        "Unknown event '" + event + "' in method '" + ProtocolElements.ONCALL_METHOD + "'");
         }
+        // Outcomes are sent as onCall notifications
+        acknowledge(rpcConnection, request);
     }
 
     private void onCallAcceptProcess(RpcConnection rpcConnection, Request<JsonObject> request) {
@@ -196,40 +393,284 @@ public class CallRpcHandler extends RpcHandler {
 
         final UserRpcConnection calleer = registry.getByUserId(fromId);
         final UserRpcConnection callee = registry.getByUserRpcConnection(rpcConnection);
+        if (calleer == null || callee == null) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "No ringing call found from '" + fromId + "'");
+        }
 
         String targetId = calleer.getCallingTo();//这是当前发送者的ID
 
-        logger.info("caller ParticipantPrivateId {},callee ParticipantPrivateId {}",
-                calleer.getParticipantPrivateId(), callee.getParticipantPrivateId());
         logger.info("Accepted call from '{}' to '{}'", fromId, targetId);
+        logger.debug("Call {}: caller privateId {}, callee privateId {}", calleer.getSessionId(),
+                calleer.getParticipantPrivateId(), callee.getParticipantPrivateId());
 
-        UserMediaSession pipeline = null;
-        logger.info("caller session {},callee session {}",
-                calleer.getSessionId(), callee.getSessionId());
+        String calleeSdpOffer = getStringParam(request,
+                ProtocolElements.ONCALL_SDPOFFER_PARAM);
+        final CallSession call = calls.get(callee.getSessionId());
+        if (call == null || !call.getSessionId().equals(calleer.getSessionId())
+                || !calls.accept(call)) {
+            throw new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "No ringing call found from '" + fromId + "'");
+        }
+        // Not waiting for the KMS, the next requests of the callee are not held
+        acceptCall(call, calleer, callee, media, calleeSdpOffer).whenComplete((v, t) -> {
+            if (t != null) {
+                // The pipeline is released whatever failed
+                String reason = cause(t).getMessage();
+                logger.warn("Error connecting call {}: {}", call.getSessionId(), reason);
+                JsonObject notify = new JsonObject();
+                notify.addProperty(ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_REJECT);
+                notify.addProperty(ProtocolElements.ONCALL_EVENT_REJECT_REASON, reason);
+                runAsUser(callee, () -> endCall(call.getSessionId(), CallSession.EndReason.MEDIA_ERROR, null,
+                        ProtocolElements.ONCALL_METHOD, notify));
+            }
+        });
+    }
 
-        pipeline = userMediaSessions.get(calleer.getSessionId());
+    /**
+     * Connects the media of both participants once the pipeline is ready
+     *
+     * @return completed when both participants have been answered
+     */
+    private CompletableFuture<Void> acceptCall(final CallSession call, final UserRpcConnection calleer,
+                                               final UserRpcConnection callee, final String media,
+                                               final String calleeSdpOffer) {
+        final UserMediaSession pipeline = call.getMediaSession();
+        if (pipeline == null) {
+            return failed(new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE,
+                    "No media session found for call " + call.getSessionId()));
+        }
+        // Kept to renegotiate the call if it has to be moved to another KMS
+        callee.setSdpOffer(calleeSdpOffer);
 
-        callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
+        return within(pipeline.whenReady(), config.getCallPipelineReadyTimeout(),
+                "Media pipeline of call " + call.getSessionId() + " not ready")
+                .thenCompose(ready -> within(negotiate(call, calleer, callee, media, pipeline, calleeSdpOffer),
+                        config.getCallNegotiationTimeout(),
+                        "SDP offers of call " + call.getSessionId() + " not answered"))
+                .thenRun(() -> call.transition(CallSession.State.ACCEPTED, CallSession.State.CONNECTED));
+    }
 
-        pipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
-                new EventListener<IceCandidateFoundEvent>() {
+    private CompletableFuture<Void> negotiate(final CallSession call, final UserRpcConnection calleer,
+                                              final UserRpcConnection callee, final String media,
+                                              final UserMediaSession pipeline, final String calleeSdpOffer) {
+        final CompletableFuture<String> callerSdpAnswer = new CompletableFuture<>();
+        // Not null when the caller offer started to be processed while ringing
+        final CompletableFuture<String> claimedCallerAnswer = pipeline.claimCallerAnswer(callerSdpAnswer);
+        final CompletableFuture<String> earlyAnswered = claimedCallerAnswer == null
+                ? CompletableFuture.completedFuture(null)
+                : claimedCallerAnswer.handle((answer, t) -> {
+            if (t != null) {
+                // Nothing was left in the endpoint, the offer is processed again
+                logger.warn("Early offer of user {} in call {} failed, processing it again: {}",
+                        calleer.getUserId(), call.getSessionId(), cause(t).getMessage());
+                return null;
+            }
+            return answer;
+        });
+        return earlyAnswered.thenCompose(earlyCallerAnswer -> {
+            CompletableFuture<Void> listening = CompletableFuture.allOf(
+                    connectUser(callee, pipeline.getCalleeWebRtcEp(), null),
+                    earlyCallerAnswer == null ? connectUser(calleer, pipeline.getCallerWebRtcEp(), null)
+                            : CompletableFuture.completedFuture(null),
+                    watchMedia(call, pipeline));
+            return listening.thenCompose(v -> {
+                // Both offers are processed at the same time, each side is answered
+                // as soon as its own answer is ready
+                CompletableFuture<Void> calleeAnswered = answer(call, callee,
+                        pipeline.processCalleeOffer(calleeSdpOffer), sdpAnswer -> {
+                            JsonObject connectedObject = new JsonObject();
+                            connectedObject.addProperty(ProtocolElements.ONCALL_SDPANSWER_PARAM, sdpAnswer);
+                            connectedObject.addProperty(
+                                    ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_CONNECTED);
+                            return connectedObject;
+                        }, () -> gatherCandidates(call, callee, pipeline.getCalleeWebRtcEp()));
+                /*告知calleer对方已经接听*/
+                CompletableFuture<Void> callerAnswered = answer(call, calleer,
+                        earlyCallerAnswer != null ? CompletableFuture.completedFuture(earlyCallerAnswer)
+                                : pipeline.processCallerOffer(calleer.getSdpOffer()),
+                        sdpAnswer -> {
+                            JsonObject accetpObject = new JsonObject();
+                            accetpObject.addProperty(
+                                    ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_ACCEPT);
+                            if (media != null)
+                                accetpObject.addProperty(ProtocolElements.ONCALL_MEDIA_PARAM, media);
+                            accetpObject.addProperty(ProtocolElements.ONCALL_SDPANSWER_PARAM, sdpAnswer);
+                            return accetpObject;
+                        }, earlyCallerAnswer != null
+                                // Already gathering, its candidates were held until now
+                                ? pipeline.getCallerAnswerGate()::open
+                                : () -> gatherCandidates(call, calleer, pipeline.getCallerWebRtcEp()));
+                return CompletableFuture.allOf(calleeAnswered, callerAnswered);
+            });
+        });
+    }
 
-                    @Override
-                    public void onEvent(IceCandidateFoundEvent event) {
-                        JsonObject jsonObject = new JsonObject();
-                        //jsonObject.addProperty("id", "iceCandidate");
-                        jsonObject.add("candidate",
-                                JsonUtils.toJsonObject(event.getCandidate()));
-                        notificationService.sendNotification(
-                                rpcConnection.getParticipantPrivateId(),
-                                ProtocolElements.ICECANDIDATE_METHOD,
-                                jsonObject);
+    /**
+     * Sends the SDP answer to the user once the KMS has generated it. Nothing
+     * is sent if the call has been terminated in the meantime
+     *
+     * @param notification builds the onCall notification with the answer
+     * @param afterSent    runs once the answer has been sent
+     */
+    private CompletableFuture<Void> answer(final CallSession call, final UserRpcConnection user,
+                                           CompletableFuture<String> sdpAnswer,
+                                           final Function<String, JsonObject> notification,
+                                           final Runnable afterSent) {
+        return sdpAnswer.thenAccept(answer -> {
+            if (call.isTerminated()) {
+                return;
+            }
+            synchronized (user) {
+                notificationService.sendNotification(user.getParticipantPrivateId(),
+                        ProtocolElements.ONCALL_METHOD, notification.apply(answer));
+            }
+            afterSent.run();
+        });
+    }
+
+    /**
+     * Starts gathering the candidates of the endpoint of the user, without
+     * waiting for the KMS
+     */
+    private void gatherCandidates(final CallSession call, final UserRpcConnection user, WebRtcEndpoint endpoint) {
+        UserMediaSession.gatherCandidates(endpoint).whenComplete((v, t) -> {
+            if (t != null) {
+                logger.warn("Error gathering candidates of user {} in call {}: {}", user.getUserId(),
+                        call.getSessionId(), t.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Processes the offer of the caller and starts gathering its candidates
+     * while the callee is ringing, once the pipeline is built. The answer, and
+     * the candidates found meanwhile, are sent to the caller when the call is
+     * accepted. Nothing waits for the KMS: if the call is accepted first, the
+     * offer is processed there instead
+     */
+    private void processCallerOfferEarly(final CallSession call, final UserRpcConnection caller,
+                                         final String sdpOffer) {
+        final UserMediaSession pipeline = call.getMediaSession();
+        pipeline.whenReady().thenRun(() -> {
+            final CompletableFuture<String> answer = new CompletableFuture<>();
+            if (call.isTerminated() || call.getMediaSession() != pipeline
+                    || pipeline.claimCallerAnswer(answer) != null) {
+                // Ended, or already accepted
+                return;
+            }
+            final WebRtcEndpoint endpoint = pipeline.getCallerWebRtcEp();
+            // Listeners are registered only once the offer is processed, so a
+            // failed offer leaves nothing behind when it is processed again
+            pipeline.processCallerOffer(sdpOffer)
+                    .thenCompose(sdpAnswer -> connectUser(caller, endpoint, pipeline.getCallerAnswerGate())
+                            .handle((v, t) -> {
+                                if (t != null) {
+                                    logger.warn("Error listening to candidates of user {} in call {}: {}",
+                                            caller.getUserId(), call.getSessionId(), cause(t).getMessage());
+                                } else {
+                                    gatherCandidates(call, caller, endpoint);
+                                }
+                                return sdpAnswer;
+                            }))
+                    .whenComplete((sdpAnswer, t) -> {
+                        if (t != null) {
+                            answer.completeExceptionally(cause(t));
+                        } else {
+                            answer.complete(sdpAnswer);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * @return completed as the given future, or failed if it is not completed
+     * in time
+     */
+    private <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeoutMs, String what) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout = callScheduler.schedule(() -> result.completeExceptionally(
+                new CloudMediaException(Code.MEDIA_GENERIC_ERROR_CODE, what + " after " + timeoutMs + " ms")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, t) -> {
+            timeout.cancel(false);
+            if (t != null) {
+                result.completeExceptionally(cause(t));
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static Throwable cause(Throwable t) {
+        return t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+    }
+
+    /**
+     * Runs the task in the queue of the user, after the requests it has
+     * already sent, or in the call scheduler if it cannot be queued
+     */
+    private void runAsUser(UserRpcConnection user, Runnable task) {
+        try {
+            if (user != null) {
+                requestExecutor.execute(user.getParticipantPrivateId(), task);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug("Queue of user {} is full, task run in the call scheduler", user.getUserId());
+        }
+        callScheduler.execute(task);
+    }
+
+    /**
+     * Marks each side of the call as connected once media flows through its
+     * endpoint, so the call is not reaped when its ICE deadline passes
+     */
+    private CompletableFuture<Void> watchMedia(final CallSession call, UserMediaSession pipeline) {
+        return CompletableFuture.allOf(
+                subscribed(c -> pipeline.getCallerWebRtcEp().addMediaStateChangedListener(event -> {
+                    if (event.getNewState() == MediaState.CONNECTED) {
+                        call.setMediaConnected(true);
                     }
-                });
+                }, c)),
+                subscribed(c -> pipeline.getCalleeWebRtcEp().addMediaStateChangedListener(event -> {
+                    if (event.getNewState() == MediaState.CONNECTED) {
+                        call.setMediaConnected(false);
+                    }
+                }, c)));
+    }
 
-        calleer.setWebRtcEndpoint(pipeline.getCallerWebRtcEp());
+    /**
+     * Sets the endpoint of a participant and sends it the candidates gathered
+     * by the endpoint, batched if the participant announced it accepts them
+     *
+     * @param answerGate holds the candidates until the SDP answer is sent to
+     *                   the participant, null sends them right away
+     * @return completed once the KMS has registered the listeners
+     */
+    private CompletableFuture<Void> connectUser(final UserRpcConnection user, WebRtcEndpoint webRtcEndpoint,
+                                                final SdpAnswerGate answerGate) {
+        user.setWebRtcEndpoint(webRtcEndpoint);
 
-        pipeline.getCallerWebRtcEp().addIceCandidateFoundListener(
+        if (config.getCallIceBatchWindow() > 0
+                && user.getProtocolVersion() >= ProtocolElements.ICECANDIDATES_PROTOCOL_VERSION) {
+            final IceCandidateBatcher batcher = new IceCandidateBatcher(user.getParticipantPrivateId(),
+                    notificationService, callScheduler, config.getCallIceBatchWindow());
+            return CompletableFuture.allOf(
+                    subscribed(c -> webRtcEndpoint.addIceCandidateFoundListener(event -> whenAnswered(answerGate,
+                            () -> batcher.add(event.getCandidate())), c)),
+                    subscribed(c -> webRtcEndpoint.addIceGatheringDoneListener(event -> whenAnswered(answerGate,
+                            batcher::gatheringDone), c)));
+        }
+
+        return subscribed(c -> webRtcEndpoint.addIceCandidateFoundListener(
                 new EventListener<IceCandidateFoundEvent>() {
 
                     @Override
@@ -238,68 +679,62 @@ public class CallRpcHandler extends RpcHandler {
                         //jsonObject.addProperty("id", "iceCandidate");
                         jsonObject.add("candidate",
                                 JsonUtils.toJsonObject(event.getCandidate()));
-                        notificationService.sendNotification(
-                                calleer.getParticipantPrivateId(),
+                        whenAnswered(answerGate, () -> notificationService.sendNotification(
+                                user.getParticipantPrivateId(),
                                 ProtocolElements.ICECANDIDATE_METHOD,
-                                jsonObject);
+                                jsonObject));
                     }
-                });
+                }, c));
+    }
 
-        String calleeSdpOffer = getStringParam(request,
-                ProtocolElements.ONCALL_SDPOFFER_PARAM);
-        String calleeSdpAnswer = pipeline.generateSdpAnswerForCallee(calleeSdpOffer);
-        JsonObject connectedObject = new JsonObject();
-        //startCommunication.addProperty("id", "startCommunication");
-        connectedObject.addProperty(
-                ProtocolElements.ONCALL_SDPANSWER_PARAM, calleeSdpAnswer);
-        connectedObject.addProperty(
-                ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_CONNECTED);
-
-        synchronized (callee) {
-            notificationService.sendNotification(
-                    rpcConnection.getParticipantPrivateId(), ProtocolElements.ONCALL_METHOD, connectedObject);
+    /**
+     * Registers a listener in the KMS without waiting for it
+     */
+    private static CompletableFuture<Void> subscribed(Consumer<Continuation<ListenerSubscription>> subscription) {
+        CompletableFuture<ListenerSubscription> future = new CompletableFuture<>();
+        try {
+            subscription.accept(UserMediaSession.continuation(future));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
         }
+        return future.thenAccept(s -> {
+        });
+    }
 
-        pipeline.getCalleeWebRtcEp().gatherCandidates();
-
-        String callerSdpOffer = registry.getByUserId(fromId).getSdpOffer();
-        String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
-
-        /*告知calleer对方已经接听*/
-        JsonObject accetpObject = new JsonObject();
-        accetpObject.addProperty(ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_ACCEPT);
-        if (media != null)
-            accetpObject.addProperty(ProtocolElements.ONCALL_MEDIA_PARAM, media);
-        accetpObject.addProperty(ProtocolElements.ONCALL_SDPANSWER_PARAM, callerSdpAnswer);
-        synchronized (calleer) {
-            notificationService.sendNotification(
-                    calleer.getParticipantPrivateId(), ProtocolElements.ONCALL_METHOD, accetpObject);
-
+    private static void whenAnswered(SdpAnswerGate answerGate, Runnable task) {
+        if (answerGate != null) {
+            answerGate.run(task);
+        } else {
+            task.run();
         }
-        pipeline.getCallerWebRtcEp().gatherCandidates();
     }
 
     private void onCallRejectProcess(RpcConnection rpcConnection,
                                      Request<JsonObject> request) {
-        if (!getStringParam(request, ProtocolElements.ONCALL_EVENT_REJECT)
+        if (!getStringParam(request, ProtocolElements.ONCALL_EVENT_PARAM)
                 .equals(ProtocolElements.ONCALL_EVENT_REJECT)) return;
-        String fromId = getStringParam(request, ProtocolElements.ONCALL_FROMUSER_PARAM);
-        final UserRpcConnection calleer = registry.getByUserId(fromId);
+        final UserRpcConnection callee = registry.getByUserRpcConnection(rpcConnection);
         JsonObject notify = new JsonObject();
         if (request.getParams().has(ProtocolElements.ONCALL_EVENT_REJECT_REASON)) {
             notify.addProperty(ProtocolElements.ONCALL_EVENT_REJECT_REASON, getStringParam(request,
                     ProtocolElements.ONCALL_EVENT_REJECT_REASON));
         }
         notify.addProperty(ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_REJECT);
-        notificationService.sendNotification(
-                calleer.getParticipantPrivateId(), ProtocolElements.ONCALL_METHOD, notify);
+        if (callee != null) {
+            endCall(callee.getSessionId(), CallSession.EndReason.REJECTED, callee,
+                    ProtocolElements.ONCALL_METHOD, notify);
+        }
     }
 
     private void onCallHangupProcess(RpcConnection rpcConnection,
                                      Request<JsonObject> request) {
-        if (!getStringParam(request, ProtocolElements.ONCALL_EVENT_HANGUP)
+        if (!getStringParam(request, ProtocolElements.ONCALL_EVENT_PARAM)
                 .equals(ProtocolElements.ONCALL_EVENT_HANGUP)) return;
-
+        UserRpcConnection user = registry.getByUserRpcConnection(rpcConnection);
+        if (user != null) {
+            endCall(user.getSessionId(), CallSession.EndReason.HANGUP, user,
+                    ProtocolElements.ONCALL_METHOD, hangupEvent(null));
+        }
     }
 
     private void onIceCandidate(RpcConnection rpcConnection, Request<JsonObject> request) {
@@ -314,31 +749,305 @@ public class CallRpcHandler extends RpcHandler {
             IceCandidate cand = new IceCandidate(candidate, sdpMid, sdpMLineIndex);
             user.addCandidate(cand);
         }
+        acknowledge(rpcConnection, request);
+    }
+
+    private void onIceCandidates(RpcConnection rpcConnection, Request<JsonObject> request) {
+        UserRpcConnection user = registry.getByUserRpcConnection(rpcConnection);
+        JsonElement candidates = request.getParams().get(ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM);
+        if (!candidates.isJsonArray()) {
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Param '" + ProtocolElements.ONICECANDIDATES_CANDIDATES_PARAM + "' must be an array");
+        }
+        if (user == null) {
+            acknowledge(rpcConnection, request);
+            return;
+        }
+        for (JsonElement element : candidates.getAsJsonArray()) {
+            JsonObject candidate = element.getAsJsonObject();
+            user.addCandidate(new IceCandidate(
+                    candidate.get(ProtocolElements.ONICECANDIDATE_CANDIDATE_PARAM).getAsString(),
+                    candidate.get(ProtocolElements.ONICECANDIDATE_SDPMIDPARAM).getAsString(),
+                    candidate.get(ProtocolElements.ONICECANDIDATE_SDPMLINEINDEX_PARAM).getAsInt()));
+        }
+        acknowledge(rpcConnection, request);
     }
 
     public void stop(RpcConnection rpcConnection, Request<JsonObject> request) {
         UserRpcConnection stopperUser =
                 registry.getByUserRpcConnection(rpcConnection);
-        if (userMediaSessions.containsKey(stopperUser.getSessionId())) {
-            UserMediaSession userMediaSession =
-                    userMediaSessions.remove(stopperUser.getSessionId());
-            userMediaSession.release();
-
-            UserRpcConnection stoppedUser =
-                    (stopperUser.getCallingFrom() != null) ? registry.getByUserId(stopperUser
-                            .getCallingFrom()) : stopperUser.getCallingTo() != null ? registry
-                            .getByUserId(stopperUser.getCallingTo()) : null;
-
-            if (stoppedUser != null) {
-                JsonObject message = new JsonObject();
-                //message.addProperty("id", "stopCommunication");
-
-                notificationService.sendNotification(
-                        stoppedUser.getParticipantPrivateId(), ProtocolElements.STOP_COMMUNICATION_METHOD, null);
-                stoppedUser.clear();
+        if (stopperUser != null) {
+            endCall(stopperUser.getSessionId(), CallSession.EndReason.HANGUP, stopperUser,
+                    ProtocolElements.STOP_COMMUNICATION_METHOD, null);
+        }
+        acknowledge(rpcConnection, request);
+    }
+
+    /**
+     * Ends the call of a user whose WebSocket is closed. It runs in the request queue of
+     * the user, after the requests it had already sent
+     */
+    @Override
+    public void afterConnectionClosed(Session rpcSession, String status) throws Exception {
+        RpcConnection connection = notificationService.getRpcConnection(rpcSession.getSessionId());
+        final UserRpcConnection user = connection != null ? registry.getByUserRpcConnection(connection) : null;
+        super.afterConnectionClosed(rpcSession, status);
+        if (user != null) {
+            registry.unregister(user);
+        }
+        if (user == null || (user.getSessionId() == null && user.getCallOwnerNode() == null)) {
+            return;
+        }
+        Runnable hangup = () -> endCall(user.getSessionId(), CallSession.EndReason.DISCONNECTED, user,
+                ProtocolElements.ONCALL_METHOD, hangupEvent(null));
+        if (user.getCallOwnerNode() != null) {
+            // The call is handled by the node of the caller
+            hangup = () -> registry.relay(user, ProtocolElements.CALL_STOP_METHOD, new JsonObject());
+        }
+        try {
+            requestExecutor.execute(user.getParticipantPrivateId(), hangup);
+        } catch (RejectedExecutionException e) {
+            hangup.run();
+        }
+    }
+
+    /**
+     * Terminates the call, releasing its pipeline, and resets the users still
+     * in it. The users other than the given one are notified
+     *
+     * @param user   the user ending the call, null if it is ended by the server
+     * @param method notification sent to the other users, null for none
+     */
+    private void endCall(String sessionId, CallSession.EndReason reason, UserRpcConnection user,
+                         String method, JsonObject params) {
+        endCall(calls.terminate(sessionId, reason), user, method, params);
+    }
+
+    private void endCall(CallSession call, UserRpcConnection user, String method, JsonObject params) {
+        if (call == null) {
+            return;
+        }
+        logger.info("Call {} from '{}' to '{}' ended: {}", call.getSessionId(), call.getCallerId(),
+                call.getCalleeId(), call.getEndReason());
+        for (String userId : new String[]{call.getCallerId(), call.getCalleeId()}) {
+            UserRpcConnection participant = user != null && userId.equals(user.getUserId()) ?
+                    user : registry.getByUserId(userId);
+            if (participant == null || !call.getSessionId().equals(participant.getSessionId())) {
+                // Gone, or already in another call
+                continue;
+            }
+            // Cleared first, so the node of a remote user learns the call is over
+            participant.clear();
+            if (participant != user && method != null) {
+                notificationService.sendNotification(participant.getParticipantPrivateId(), method, params);
+            }
+            if (participant instanceof RemoteUserRpcConnection) {
+                registry.forgetRemoteUser(userId);
+            }
+        }
+    }
+
+    private static JsonObject hangupEvent(String reason) {
+        JsonObject notify = new JsonObject();
+        notify.addProperty(ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_HANGUP);
+        if (reason != null) {
+            notify.addProperty(ProtocolElements.ONCALL_EVENT_REJECT_REASON, reason);
+        }
+        return notify;
+    }
+
+    /**
+     * Ends a call that overstayed one of its deadlines. It runs in the request queue of
+     * the caller, as the requests about the call
+     */
+    public void callExpired(final CallSession call, final CallSession.EndReason reason) {
+        Runnable expiry = () -> {
+            CallSession expired = calls.terminate(call.getSessionId(), reason,
+                    reason == CallSession.EndReason.RING_TIMEOUT ? CallSession.State.RINGING : null);
+            endCall(expired, null, ProtocolElements.ONCALL_METHOD,
+                    hangupEvent(reason.name().toLowerCase().replace('_', '-')));
+        };
+        runAsUser(registry.getLocalUser(call.getCallerId()), expiry);
+    }
+
+    /**
+     * Periodically terminates the calls whose caller has left them without
+     * the call being ended, so their pipelines do not stay in the KMS
+     *
+     * @param periodMs 0 disables the check
+     */
+    public void startLeakCheck(long periodMs) {
+        if (periodMs <= 0) {
+            return;
+        }
+        callScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                for (CallSession call : calls.terminateLeaked(this::isReferenced)) {
+                    endCall(call, null, ProtocolElements.STOP_COMMUNICATION_METHOD, null);
+                }
+            } catch (Exception e) {
+                logger.error("Error checking leaked calls", e);
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Calls are handled by the node of their caller, which references the call
+     * until it is ended
+     */
+    private boolean isReferenced(CallSession call) {
+        UserRpcConnection caller = registry.getLocalUser(call.getCallerId());
+        return caller != null && call.getSessionId().equals(caller.getSessionId());
+    }
+
+    /**
+     * Runs a request of a user connected to another node, about a call handled
+     * by this node. It is executed in the request queue of the stand-in of the user
+     */
+    public JsonElement relayRequest(JsonObject message) {
+        final String methodName = message.get(ClusterProtocol.METHOD_PARAM).getAsString();
+        final RpcMethodRegistry.RpcMethod method = methods.getMethod(methodName);
+        if (method == null || !RELAYED_METHODS.contains(methodName)) {
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Method '" + methodName + "' cannot be relayed");
+        }
+        final UserRpcConnection user = registry.getRemoteUser(
+                message.get(ClusterProtocol.USER_PARAM).getAsString(),
+                message.get(ClusterProtocol.NODE_PARAM).getAsString());
+        final Request<JsonObject> request = new Request<>(methodName,
+                message.getAsJsonObject(ClusterProtocol.PARAMS_PARAM));
+        requestExecutor.execute(user.getParticipantPrivateId(), () -> {
+            try {
+                dispatch(method, user, request);
+            } catch (Exception e) {
+                logger.error("Error executing method '{}' relayed for user {}", methodName, user.getUserId(), e);
+            }
+        });
+        return new JsonPrimitive(true);
+    }
+
+    @Override
+    public void kmsDisconnected(Kms kms) {
+        logger.warn("KMS {} disconnected, its calls are moved to another KMS if it is not back in {} ms",
+                kms.getUri(), config.getKmsFailoverGracePeriod());
+        ScheduledFuture<?> failover = callScheduler.schedule(() -> migrateCalls(kms),
+                config.getKmsFailoverGracePeriod(), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = pendingFailovers.put(kms, failover);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    @Override
+    public void kmsReconnected(Kms kms, boolean sameInstance) {
+        ScheduledFuture<?> failover = pendingFailovers.remove(kms);
+        if (failover != null) {
+            failover.cancel(false);
+        }
+        if (sameInstance) {
+            logger.info("KMS {} reconnected, its calls are kept", kms.getUri());
+        } else {
+            // A restarted KMS has lost all its pipelines
+            callScheduler.execute(() -> migrateCalls(kms));
+        }
+    }
+
+    @Override
+    public void kmsConnectionReplaced(Kms kms, KurentoClient oldClient) {
+        // Only the calls built through the old client are lost
+        callScheduler.execute(() -> migrateCalls(kms, oldClient));
+    }
+
+    private void migrateCalls(Kms kms) {
+        pendingFailovers.remove(kms);
+        migrateCalls(kms, null);
+    }
+
+    /**
+     * Moves every call hosted by the given KMS to a healthy one. Each call is
+     * migrated in the request queue of its caller, so it does not overlap with
+     * the caller requests
+     *
+     * @param client only the calls built through this client are moved, null
+     *               for all of them
+     */
+    private void migrateCalls(Kms kms, KurentoClient client) {
+        for (final CallSession call : calls.getCalls()) {
+            final UserMediaSession session = call.getMediaSession();
+            if (session == null || session.getKms() != kms
+                    || (client != null && session.getKurentoClient() != client)) {
+                continue;
+            }
+            UserRpcConnection caller = registry.getLocalUser(call.getCallerId());
+            if (caller == null || !call.getSessionId().equals(caller.getSessionId())) {
+                endCall(call.getSessionId(), CallSession.EndReason.MEDIA_ERROR, null,
+                        ProtocolElements.STOP_COMMUNICATION_METHOD, null);
+                continue;
+            }
+            final UserRpcConnection callerUser = caller;
+            final UserRpcConnection calleeUser = registry.getByUserId(call.getCalleeId());
+            Runnable migration = () -> migrateCall(call, session, callerUser, calleeUser);
+            try {
+                requestExecutor.execute(caller.getParticipantPrivateId(), migration);
+            } catch (RejectedExecutionException e) {
+                migration.run();
             }
-            stopperUser.clear();
         }
     }
 
+    private void migrateCall(CallSession call, UserMediaSession oldSession,
+                             UserRpcConnection caller, UserRpcConnection callee) {
+        final String sessionId = call.getSessionId();
+        UserMediaSession newSession;
+        try {
+            newSession = mediaSessionFactory.createSession(call.getMedia());
+        } catch (CloudMediaException e) {
+            logger.error("Unable to move call {} of KMS {}: {}", sessionId, oldSession.getKms().getUri(),
+                    e.getMessage());
+            endCall(sessionId, CallSession.EndReason.MEDIA_ERROR, null,
+                    ProtocolElements.STOP_COMMUNICATION_METHOD, null);
+            return;
+        }
+        if (!calls.replaceMediaSession(call, oldSession, newSession)) {
+            // The call ended in the meantime
+            return;
+        }
+        if (callee == null || call.getState() == CallSession.State.RINGING || callee.getSdpOffer() == null) {
+            // Not accepted yet, the new pipeline is used when it is
+            if (config.isCallEarlyOffer() && call.getState() == CallSession.State.RINGING) {
+                processCallerOfferEarly(call, caller, caller.getSdpOffer());
+            }
+            logger.info("Ringing call {} moved from KMS {}", sessionId, oldSession.getKms().getUri());
+            return;
+        }
+        final UserMediaSession pipeline = newSession;
+        within(pipeline.whenReady(), config.getCallPipelineReadyTimeout(),
+                "Media pipeline of call " + sessionId + " not ready")
+                .thenCompose(ready -> within(CompletableFuture.allOf(
+                        connectUser(callee, pipeline.getCalleeWebRtcEp(), null),
+                        connectUser(caller, pipeline.getCallerWebRtcEp(), null),
+                        watchMedia(call, pipeline)).thenCompose(v -> CompletableFuture.allOf(
+                        answer(call, callee, pipeline.processCalleeOffer(callee.getSdpOffer()), this::renegotiation,
+                                () -> gatherCandidates(call, callee, pipeline.getCalleeWebRtcEp())),
+                        answer(call, caller, pipeline.processCallerOffer(caller.getSdpOffer()), this::renegotiation,
+                                () -> gatherCandidates(call, caller, pipeline.getCallerWebRtcEp())))),
+                        config.getCallNegotiationTimeout(), "SDP offers of call " + sessionId + " not answered"))
+                .whenComplete((v, t) -> {
+                    if (t == null) {
+                        logger.info("Call {} moved from KMS {}", sessionId, oldSession.getKms().getUri());
+                        return;
+                    }
+                    logger.error("Error moving call {} of KMS {}: {}", sessionId, oldSession.getKms().getUri(),
+                            cause(t).getMessage());
+                    runAsUser(caller, () -> endCall(sessionId, CallSession.EndReason.MEDIA_ERROR, null,
+                            ProtocolElements.STOP_COMMUNICATION_METHOD, null));
+                });
+    }
+
+    private JsonObject renegotiation(String sdpAnswer) {
+        JsonObject notify = new JsonObject();
+        notify.addProperty(ProtocolElements.ONCALL_EVENT_PARAM, ProtocolElements.ONCALL_EVENT_RENEGOTIATE);
+        notify.addProperty(ProtocolElements.ONCALL_SDPANSWER_PARAM, sdpAnswer);
+        return notify;
+    }
 }
@@ -17,14 +17,14 @@
 
 package org.ubonass.media.server.rpc;
 
+import com.google.gson.JsonObject;
+import io.netty.util.Timeout;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-
-import java.util.Collection;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.utils.ConcurrentIntObjectMap;
 
 public class RpcConnection {
 
@@ -32,16 +32,51 @@ public class RpcConnection {
             LoggerFactory.getLogger(RpcConnection.class);
 
     private Session session;
-    private ConcurrentMap<Integer, Transaction> transactions;
+    private ConcurrentIntObjectMap<Transaction> transactions;
+    /**
+     * Deadlines of the open transactions, when they are tracked
+     */
+    private ConcurrentIntObjectMap<Timeout> deadlines;
     private String sessionId;
     private String participantPrivateId;
+    private RpcOutboundQueue outboundQueue;
+    private volatile String userId;
+    private volatile String userNamespace;
+    private volatile int protocolVersion = 1;
 
     public RpcConnection(Session session) {
         this.session = session;
-        this.transactions = new ConcurrentHashMap<>();
+        this.transactions = new ConcurrentIntObjectMap<>();
+        this.deadlines = new ConcurrentIntObjectMap<>();
         this.participantPrivateId = session.getSessionId();
     }
 
+    /**
+     * Connection without a local session, for participants attached to another
+     * node
+     */
+    protected RpcConnection(String participantPrivateId) {
+        this.transactions = new ConcurrentIntObjectMap<>();
+        this.deadlines = new ConcurrentIntObjectMap<>();
+        this.participantPrivateId = participantPrivateId;
+    }
+
+    /**
+     * Takes over the given connection: the session, its open transactions and
+     * its outbound queue are shared with it
+     */
+    protected RpcConnection(RpcConnection connection) {
+        this.session = connection.session;
+        this.transactions = connection.transactions;
+        this.deadlines = connection.deadlines;
+        this.sessionId = connection.sessionId;
+        this.participantPrivateId = connection.participantPrivateId;
+        this.outboundQueue = connection.outboundQueue;
+        this.userId = connection.userId;
+        this.userNamespace = connection.userNamespace;
+        this.protocolVersion = connection.protocolVersion;
+    }
+
     public Session getSession() {
         return session;
     }
@@ -54,6 +89,44 @@ public class RpcConnection {
         this.participantPrivateId = participantPrivateId;
     }
 
+    /**
+     * @return the user identified in this connection, null if none
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    protected void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    /**
+     * @return the index of the endpoint the user id is bound in, null if none
+     * @see RpcConnectionRegistry#bindUser(String, String, RpcConnection)
+     */
+    public String getUserNamespace() {
+        return userNamespace;
+    }
+
+    void setUserNamespace(String userNamespace) {
+        this.userNamespace = userNamespace;
+    }
+
+    /**
+     * @return the protocol revision agreed with the participant
+     * @see org.ubonass.media.client.internal.ProtocolElements#PROTOCOL_VERSION
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public void setProtocolVersion(int protocolVersion) {
+        this.protocolVersion = protocolVersion;
+        if (outboundQueue != null) {
+            outboundQueue.setBatching(protocolVersion >= ProtocolElements.BATCH_PROTOCOL_VERSION);
+        }
+    }
+
     public String getSessionId() {
         return sessionId;
     }
@@ -62,22 +135,86 @@ public class RpcConnection {
         this.sessionId = sessionId;
     }
 
-    public Transaction getTransaction(Integer transactionId) {
+    public Transaction getTransaction(int transactionId) {
         return transactions.get(transactionId);
     }
 
-    public void addTransaction(Integer transactionId, Transaction t) {
-        Transaction oldT = transactions.putIfAbsent(transactionId, t);
-        if (oldT != null) {
+    /**
+     * @return false if there was already a transaction with the same id
+     */
+    public boolean addTransaction(int transactionId, Transaction t) {
+        if (transactions.putIfAbsent(transactionId, t) != null) {
             log.error("Found an existing transaction for the key {}", transactionId);
+            return false;
         }
+        return true;
     }
 
-    public void removeTransaction(Integer transactionId) {
-        transactions.remove(transactionId);
+    /**
+     * @return the removed transaction, null if there was none with the id
+     */
+    public Transaction removeTransaction(int transactionId) {
+        return transactions.remove(transactionId);
+    }
+
+    /**
+     * Removes the transaction only if it is still the one with the id
+     */
+    public boolean removeTransaction(int transactionId, Transaction t) {
+        return transactions.remove(transactionId, t);
+    }
+
+    void setDeadline(int transactionId, Timeout deadline) {
+        deadlines.putIfAbsent(transactionId, deadline);
+    }
+
+    Timeout removeDeadline(int transactionId) {
+        return deadlines.remove(transactionId);
+    }
+
+    void removeDeadline(int transactionId, Timeout deadline) {
+        deadlines.remove(transactionId, deadline);
+    }
+
+    /**
+     * @return the queue of messages to be written to the participant, null if
+     * they are written directly
+     */
+    public RpcOutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public void setOutboundQueue(RpcOutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+    }
+
+    public int getNumTransactions() {
+        return transactions.size();
+    }
+
+    /**
+     * @return a snapshot of the ids of the open transactions
+     */
+    public int[] getTransactionIds() {
+        return transactions.keys();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("participantPrivateId", participantPrivateId);
+        json.addProperty("userId", userId);
+        json.addProperty("userNamespace", userNamespace);
+        json.addProperty("sessionId", sessionId);
+        json.addProperty("protocolVersion", protocolVersion);
+        json.addProperty("transactions", transactions.size());
+        if (outboundQueue != null) {
+            json.addProperty("queued", outboundQueue.size());
+        }
+        return json;
     }
 
-    public Collection<Transaction> getTransactions() {
-        return transactions.values();
+    @Override
+    public String toString() {
+        return toJson().toString();
     }
 }
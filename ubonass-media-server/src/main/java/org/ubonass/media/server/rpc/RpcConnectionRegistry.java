@@ -0,0 +1,208 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Single place where the open {@link RpcConnection}s are kept, indexed by the
+ * private id of their WebSocket session and, once the participant is
+ * identified, by its user id. Each signalling endpoint has its own user id
+ * index, so the same user can be connected to several of them. The indexes
+ * point to the same connection object, so there is no per-index entry to keep
+ * in sync.
+ */
+public class RpcConnectionRegistry {
+
+    /**
+     * User ids of the connections to the /media endpoint
+     */
+    public static final String MEDIA_USERS = "media";
+    /**
+     * User ids of the connections to the /call endpoint
+     */
+    public static final String CALL_USERS = "call";
+
+    private final ConcurrentMap<String, RpcConnection> byPrivateId = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, RpcConnection>> byUserId = new ConcurrentHashMap<>();
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleReplaced = new LongAdder();
+
+    /**
+     * @return the given connection, or the one already registered with the
+     * same private id
+     */
+    public RpcConnection add(RpcConnection connection) {
+        RpcConnection old = byPrivateId.putIfAbsent(connection.getParticipantPrivateId(), connection);
+        return old != null ? old : connection;
+    }
+
+    /**
+     * Binds the user id to the connection in the index of an endpoint. The
+     * connection replaces the one registered with its private id, so a
+     * subclass carrying the user state can take its place. A user id still
+     * bound to a connection that is no longer registered (closed without being
+     * unbound) is taken over
+     *
+     * @param namespace user id index of the endpoint, such as {@link #CALL_USERS}
+     * @return false if the user id belongs to another open connection of the
+     * endpoint, or the connection itself has been removed
+     */
+    public boolean bindUser(String namespace, String userId, RpcConnection connection) {
+        final String privateId = connection.getParticipantPrivateId();
+        final String previousUserId = connection.getUserId();
+        final boolean[] bound = {false};
+        users(namespace).compute(userId, (id, current) -> {
+            if (current != null && current != connection
+                    && !current.getParticipantPrivateId().equals(privateId)) {
+                if (byPrivateId.get(current.getParticipantPrivateId()) == current) {
+                    return current;
+                }
+                staleReplaced.increment();
+            }
+            connection.setUserId(userId);
+            connection.setUserNamespace(namespace);
+            if (byPrivateId.computeIfPresent(privateId, (k, v) -> connection) == null) {
+                // Closed in the meantime
+                return current;
+            }
+            bound[0] = true;
+            return connection;
+        });
+        if (bound[0] && previousUserId != null && !previousUserId.equals(userId)) {
+            // The participant identified itself again with another user id
+            users(namespace).computeIfPresent(previousUserId,
+                    (id, current) -> current.getParticipantPrivateId().equals(privateId) ? null : current);
+        }
+        return bound[0];
+    }
+
+    /**
+     * Unbinds the user id, only if it is still bound to the given connection
+     */
+    public boolean unbindUser(String namespace, String userId, RpcConnection connection) {
+        return users(namespace).remove(userId, connection);
+    }
+
+    /**
+     * Removes the connection with the given private id from all the indexes
+     *
+     * @return the removed connection, null if there was none
+     */
+    public RpcConnection remove(String privateId) {
+        RpcConnection connection = byPrivateId.remove(privateId);
+        if (connection != null && connection.getUserId() != null && connection.getUserNamespace() != null) {
+            users(connection.getUserNamespace()).remove(connection.getUserId(), connection);
+        }
+        return connection;
+    }
+
+    public RpcConnection getByPrivateId(String privateId) {
+        return count(byPrivateId.get(privateId));
+    }
+
+    public RpcConnection getByUserId(String namespace, String userId) {
+        return count(users(namespace).get(userId));
+    }
+
+    public boolean containsUser(String namespace, String userId) {
+        return getByUserId(namespace, userId) != null;
+    }
+
+    public Collection<RpcConnection> getConnections() {
+        return Collections.unmodifiableCollection(byPrivateId.values());
+    }
+
+    public Collection<RpcConnection> getUsers(String namespace) {
+        return Collections.unmodifiableCollection(users(namespace).values());
+    }
+
+    public int size() {
+        return byPrivateId.size();
+    }
+
+    /**
+     * @return the user ids bound in all the endpoints
+     */
+    public int getNumUsers() {
+        int users = 0;
+        for (ConcurrentMap<String, RpcConnection> index : byUserId.values()) {
+            users += index.size();
+        }
+        return users;
+    }
+
+    private ConcurrentMap<String, RpcConnection> users(String namespace) {
+        return byUserId.computeIfAbsent(namespace, n -> new ConcurrentHashMap<>());
+    }
+
+    private RpcConnection count(RpcConnection connection) {
+        lookups.increment();
+        if (connection == null) {
+            misses.increment();
+        }
+        return connection;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("connections", size());
+        json.addProperty("users", getNumUsers());
+        JsonObject users = new JsonObject();
+        for (Map.Entry<String, ConcurrentMap<String, RpcConnection>> index : byUserId.entrySet()) {
+            users.addProperty(index.getKey(), index.getValue().size());
+        }
+        json.add("usersByNamespace", users);
+        json.addProperty("lookups", lookups.sum());
+        json.addProperty("misses", misses.sum());
+        json.addProperty("staleReplaced", staleReplaced.sum());
+        return json;
+    }
+
+    /**
+     * @return a page of the open connections, in no particular order
+     */
+    public JsonArray toJson(int offset, int limit) {
+        JsonArray json = new JsonArray();
+        int index = 0;
+        for (RpcConnection connection : byPrivateId.values()) {
+            if (json.size() >= limit) {
+                break;
+            }
+            if (index++ >= offset) {
+                json.add(connection.toJson());
+            }
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
@@ -3,7 +3,8 @@ package org.ubonass.media.server.rpc;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
@@ -13,81 +14,156 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
 import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.cluster.PresenceService;
 import org.ubonass.media.server.kurento.KurentoClientProvider;
 
 import javax.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 
 public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
 
     private static final Logger logger = LoggerFactory.getLogger(RpcHandler.class);
     private ConcurrentMap<String, Boolean> webSocketEOFTransportError = new ConcurrentHashMap<>();
-    /**
-     * key为用户远程连的客户唯一标识,Value为Session
-     */
-    private Map<String, Session> onlineUsers = new ConcurrentHashMap<>();
     @Autowired
     private RpcNotificationService notificationService;
 
     @Autowired
     private KurentoClientProvider kcProvider;
 
+    @Autowired
+    private PresenceService presenceService;
+
+    @Autowired
+    protected RpcRequestExecutor requestExecutor;
+
+    private final RpcMethodRegistry mediaMethods = new RpcMethodRegistry();
+
+    public RpcHandler() {
+        mediaMethods.register(ProtocolElements.KEEPLIVE_METHOD, this::keepLive)
+                .register(ProtocolElements.INVITED_METHOD, this::invited,
+                        ProtocolElements.INVITED_USER_PARAM,
+                        ProtocolElements.INVITED_NUMBER_PARAM,
+                        ProtocolElements.INVITED_TARGETS_PARAM,
+                        ProtocolElements.INVITED_TYPEMEDIA_PARAM)
+                .register(ProtocolElements.ONINVITED_METHOD, this::onInvited,
+                        ProtocolElements.ONINVITED_TARGETUSER_PARAM,
+                        ProtocolElements.ONINVITED_FROMUSER_PARAM,
+                        ProtocolElements.ONINVITED_TYPEEVENT_PARAM);
+    }
+
     @Override
     public void handleRequest(Transaction transaction, Request<JsonObject> request)
             throws Exception {
-        /*String participantPrivateId =
+        String participantPrivateId =
                 getParticipantPrivateIdByTransaction(transaction);
-        logger.info("WebSocket session #{} - Request: {}", participantPrivateId, request);
+        notificationService.getSignallingLogger().request(participantPrivateId, request);
+
+        RpcMethodRegistry.RpcMethod method = mediaMethods.getMethod(request.getMethod());
+        if (method == null) {
+            logger.warn("Unrecognized method '{}' requested by participant with privateId {}",
+                    request.getMethod(), participantPrivateId);
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Unrecognized method '" + request.getMethod() + "'");
+        }
         RpcConnection rpcConnection;
         if (ProtocolElements.KEEPLIVE_METHOD.equals(request.getMethod())) {
             // Store new RpcConnection information if method 'keepLive'
             rpcConnection = notificationService.newRpcConnection(transaction, request);
         } else if (notificationService.getRpcConnection(participantPrivateId) == null) {
-            // Throw exception if any method is called before 'joinCloud'
+            // Throw exception if any method is called before 'keepLive'
             logger.warn(
-                    "No connection found for participant with privateId {} when trying to execute method '{}'. Method 'Session.connect()' must be the first operation called in any session",
+                    "No connection found for participant with privateId {} when trying to execute method '{}'. Method 'keepLive' must be the first operation called in any session",
                     participantPrivateId, request.getMethod());
             throw new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
                     "No connection found for participant with privateId " + participantPrivateId
-                            + ". Method 'Session.connect()' must be the first operation called in any session");
+                            + ". Method 'keepLive' must be the first operation called in any session");
         }
 
         rpcConnection = notificationService.addTransaction(transaction, request);
 
         transaction.startAsync();
 
-        switch (request.getMethod()) {
-            case ProtocolElements.KEEPLIVE_METHOD:
-                keepLive(rpcConnection, request);
-                break;
-            case ProtocolElements.INVITED_METHOD:
-                invited(rpcConnection, request);
-                break;
-            case ProtocolElements.ONINVITED_METHOD:
-                onInvited(rpcConnection, request);
-                break;
-            case ProtocolElements.VOIP_CALL_METHOD:
-                call(rpcConnection, request);
-                break;
-            case ProtocolElements.VOIP_CALLANSWER_METHOD:
-                callAnswer(rpcConnection, request);
-                break;
-            default:
-                //log.error("Unrecognized request {}", request);
-                break;
-        }*/
+        // Invitations wait for the nodes of their targets
+        execute(method, rpcConnection, request);
+    }
+
+    /**
+     * Runs the request in the queue of its participant, after the requests it
+     * had already sent, so the WebSocket thread never waits for it
+     */
+    protected void execute(final RpcMethodRegistry.RpcMethod method, final RpcConnection rpcConnection,
+                           final Request<JsonObject> request) throws Exception {
+        final String participantPrivateId = rpcConnection.getParticipantPrivateId();
+        if (requestExecutor.isInline()) {
+            dispatch(method, rpcConnection, request);
+            return;
+        }
+        try {
+            requestExecutor.execute(participantPrivateId, () -> {
+                try {
+                    dispatch(method, rpcConnection, request);
+                } catch (Exception e) {
+                    logger.error("Error executing method '{}' for participant with privateId {}",
+                            method.getName(), participantPrivateId, e);
+                    notificationService.sendErrorResponse(participantPrivateId, request.getId(), null,
+                            new CloudMediaException(Code.GENERIC_ERROR_CODE, e.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Request queue full, rejecting method '{}' for participant with privateId {}",
+                    method.getName(), participantPrivateId);
+            notificationService.sendErrorResponse(participantPrivateId, request.getId(), null,
+                    new CloudMediaException(Code.TRANSPORT_ERROR_CODE,
+                            "Server busy, unable to process method '" + method.getName() + "'"));
+        }
+    }
+
+    protected void dispatch(RpcMethodRegistry.RpcMethod method,
+                            RpcConnection rpcConnection, Request<JsonObject> request) throws Exception {
+        try {
+            method.invoke(rpcConnection, request);
+        } catch (CloudMediaException e) {
+            logger.warn("Error executing method '{}' for participant with privateId {}: {}",
+                    method.getName(), rpcConnection.getParticipantPrivateId(), e.getMessage());
+            notificationService.sendErrorResponse(rpcConnection.getParticipantPrivateId(),
+                    request.getId(), null, e);
+        }
     }
 
+    /**
+     * Identifies the user of the connection, unless it was identified when
+     * connecting, and negotiates the protocol version
+     */
     private void keepLive(RpcConnection rpcConnection, Request<JsonObject> request) {
         JsonObject result = new JsonObject();
         result.addProperty(ProtocolElements.KEEPLIVE_METHOD, "OK");
+        if (rpcConnection.getUserId() == null && request.getParams() != null
+                && request.getParams().has(ProtocolElements.KEEPLIVE_USERID_PARAM)) {
+            String userId = getStringParam(request, ProtocolElements.KEEPLIVE_USERID_PARAM);
+            if (!bindUser(userId, rpcConnection)) {
+                throw new CloudMediaException(Code.USER_GENERIC_ERROR_CODE,
+                        "User " + userId + " is already connected");
+            }
+        }
+        if (request.getParams() != null && request.getParams().has(ProtocolElements.KEEPLIVE_PROTOCOLVERSION_PARAM)) {
+            int version = Math.min(getIntParam(request, ProtocolElements.KEEPLIVE_PROTOCOLVERSION_PARAM),
+                    ProtocolElements.PROTOCOL_VERSION);
+            rpcConnection.setProtocolVersion(version);
+            result.addProperty(ProtocolElements.KEEPLIVE_PROTOCOLVERSION_PARAM, version);
+        }
         notificationService.sendResponse(rpcConnection.getParticipantPrivateId(),
                 request.getId(), result);
 
@@ -95,10 +171,9 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
 
 
     private void invited(RpcConnection rpcConnection, Request<JsonObject> request) {
-        logger.info("Params :" + request.getParams().toString());
         String fromId = getStringParam(request, ProtocolElements.INVITED_USER_PARAM);
         int number = getIntParam(request, ProtocolElements.INVITED_NUMBER_PARAM);
-        String targetUsers = getStringParam(request, ProtocolElements.INVITED_TARGETS_PARAM);
+        JsonElement targetUsers = getParam(request, ProtocolElements.INVITED_TARGETS_PARAM);
         String typeOfMedia = getStringParam(request, ProtocolElements.INVITED_TYPEMEDIA_PARAM);
         String session = null;
         if (request.getParams().has(ProtocolElements.INVITED_SESSION_PARAM))
@@ -109,37 +184,35 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         /** 首先判断这个target id是否在userIdAndPrivateId集合当中有
          * 如果没有说明不在线需要返回,如果有则向目标发起通知,通知其加入房间*/
         if (number > 0) {
-            try {
-                JsonArray targetArray =
-                        new JsonParser().parse(targetUsers).getAsJsonArray();
-                logger.info("targetArray size:" + targetArray.size());
-                for (int i = 0; i < targetArray.size(); i++) {
-                    JsonObject notifParams = new JsonObject();
-                    JsonObject target = targetArray.get(i).getAsJsonObject();
-                    String targetId = target.get("userId").getAsString();
-                    //判断targetId是否在sessions集合当中
-                    boolean targetOnline = onlineUsers.containsKey(targetId);
-                    if (targetOnline) {
-                        Session targetSession = onlineUsers.get(targetId);
+            List<String> targetIds = getTargetIds(targetUsers);
+            logger.debug("Inviting {} users", targetIds.size());
+            final String room = session;
+            // Every target is looked up and notified at once, in this node or in another one
+            Map<String, Boolean> online = presenceService.notifyUsers(targetIds,
+                    ProtocolElements.ONINVITED_METHOD, targetId -> {
+                        JsonObject notifParams = new JsonObject();
                         notifParams.addProperty(ProtocolElements.ONINVITED_FROMUSER_PARAM, fromId);
                         notifParams.addProperty(ProtocolElements.ONINVITED_TARGETUSER_PARAM, targetId);
                         notifParams.addProperty(ProtocolElements.ONINVITED_TYPEMEDIA_PARAM, typeOfMedia);
                         notifParams.addProperty(ProtocolElements.ONINVITED_TYPEEVENT_PARAM,
                                 ProtocolElements.ONINVITED_EVENT_CALL);
-                        if (session != null)
-                            notifParams.addProperty(ProtocolElements.ONINVITED_SESSION_PARAM, session);
-                        targetSession.sendNotification(ProtocolElements.ONINVITED_METHOD, notifParams);
-                    }
-                    //回復客戶端端
-                    JsonObject object = new JsonObject();
-                    object.addProperty(ProtocolElements.INVITED_USER_PARAM, targetId);
-                    object.addProperty("state", targetOnline ? "online" : "offline");
-                    resultTargetArray.add(object);
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+                        if (room != null)
+                            notifParams.addProperty(ProtocolElements.ONINVITED_SESSION_PARAM, room);
+                        return notifParams;
+                    });
+            //回復客戶端端
+            for (String targetId : targetIds) {
+                JsonObject object = new JsonObject();
+                object.addProperty(ProtocolElements.INVITED_TARGETS_USER_PARAM, targetId);
+                object.addProperty(ProtocolElements.INVITED_TARGETS_STATE_PARAM,
+                        Boolean.TRUE.equals(online.get(targetId)) ? "online" : "offline");
+                resultTargetArray.add(object);
+            }
+            if (targetUsers.isJsonArray() || rpcConnection.getProtocolVersion() >= 2) {
+                result.add(ProtocolElements.INVITED_TARGETS_PARAM, resultTargetArray);
+            } else {
+                result.addProperty(ProtocolElements.INVITED_TARGETS_PARAM, resultTargetArray.toString());
             }
-            result.addProperty(ProtocolElements.INVITED_TARGETS_PARAM, String.valueOf(resultTargetArray));
         }
 
         result.addProperty(ProtocolElements.INVITED_METHOD, "OK");
@@ -165,25 +238,32 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         /**
          * 判断目标用户是否存在
          */
-        if (onlineUsers.containsKey(targetId)) {
-            Session targetSession = onlineUsers.get(targetId);
-            JsonObject notifParams = new JsonObject();
-            notifParams.addProperty(ProtocolElements.ONINVITED_TARGETUSER_PARAM, targetId);
-            notifParams.addProperty(ProtocolElements.ONINVITED_FROMUSER_PARAM, fromId);
-            if (typeOfMedia != null)
-                notifParams.addProperty(ProtocolElements.ONINVITED_TYPEMEDIA_PARAM, typeOfMedia);
-            if (session != null)
-                notifParams.addProperty(ProtocolElements.ONINVITED_SESSION_PARAM, session);
-            notifParams.addProperty(ProtocolElements.ONINVITED_TYPEEVENT_PARAM, event);
-            try {
-                targetSession.sendNotification(ProtocolElements.ONINVITED_METHOD, notifParams);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        JsonObject notifParams = new JsonObject();
+        notifParams.addProperty(ProtocolElements.ONINVITED_TARGETUSER_PARAM, targetId);
+        notifParams.addProperty(ProtocolElements.ONINVITED_FROMUSER_PARAM, fromId);
+        if (typeOfMedia != null)
+            notifParams.addProperty(ProtocolElements.ONINVITED_TYPEMEDIA_PARAM, typeOfMedia);
+        if (session != null)
+            notifParams.addProperty(ProtocolElements.ONINVITED_SESSION_PARAM, session);
+        notifParams.addProperty(ProtocolElements.ONINVITED_TYPEEVENT_PARAM, event);
+        presenceService.notifyUsers(Collections.singletonList(targetId),
+                ProtocolElements.ONINVITED_METHOD, id -> notifParams);
+        acknowledge(rpcConnection, request);
     }
 
 
+    /**
+     * Answers a request whose handler has nothing to return, so its
+     * transaction is closed. Requests without id, such as the relayed ones,
+     * have no transaction
+     */
+    protected void acknowledge(RpcConnection rpcConnection, Request<JsonObject> request) {
+        if (request.getId() != null) {
+            notificationService.sendResponse(rpcConnection.getParticipantPrivateId(), request.getId(),
+                    new JsonObject());
+        }
+    }
+
     public static String getStringParam(Request<JsonObject> request, String key) {
         if (request.getParams() == null || request.getParams().get(key) == null) {
             throw new RuntimeException("Request element '" + key + "' is missing in method '" + request.getMethod()
@@ -216,6 +296,61 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
         return request.getParams().get(key);
     }
 
+    /**
+     * Reads the user ids of the invite targets: a JSON array of objects with a
+     * userId (protocol 2), or the same array serialized as a string (protocol
+     * 1), which is read as a stream without building the array
+     */
+    public static List<String> getTargetIds(JsonElement targets) {
+        List<String> targetIds = new ArrayList<>();
+        if (targets.isJsonArray()) {
+            for (JsonElement target : targets.getAsJsonArray()) {
+                targetIds.add(target.isJsonObject() ?
+                        target.getAsJsonObject().get(ProtocolElements.INVITED_TARGETS_USER_PARAM).getAsString() :
+                        target.getAsString());
+            }
+            return targetIds;
+        }
+        try (JsonReader reader = new JsonReader(new StringReader(targets.getAsString()))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (reader.peek() == JsonToken.STRING) {
+                    targetIds.add(reader.nextString());
+                    continue;
+                }
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (ProtocolElements.INVITED_TARGETS_USER_PARAM.equals(reader.nextName())) {
+                        targetIds.add(reader.nextString());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endArray();
+        } catch (IOException | IllegalStateException e) {
+            throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                    "Invalid '" + ProtocolElements.INVITED_TARGETS_PARAM + "': " + e.getMessage());
+        }
+        return targetIds;
+    }
+
+    /**
+     * Binds the user id to the connection in the index of this endpoint and
+     * records that the user is online
+     *
+     * @return false if the user is already connected to this endpoint
+     */
+    protected boolean bindUser(String userId, RpcConnection connection) {
+        if (!notificationService.getConnectionRegistry().bindUser(RpcConnectionRegistry.MEDIA_USERS, userId,
+                connection)) {
+            return false;
+        }
+        presenceService.userConnected(userId);
+        return true;
+    }
+
     public String getParticipantPrivateIdByTransaction(Transaction transaction) {
         String participantPrivateId = null;
         try {
@@ -254,7 +389,11 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
                                 .getWebSocketSession()
                                 .getAttributes()
                                 .get("userId");
-                onlineUsers.put(userId, rpcSession);
+                RpcConnection connection = notificationService.newRpcConnection(rpcSession);
+                if (!bindUser(userId, connection)) {
+                    logger.warn("User {} is already connected, WebSocket session {} not bound to it",
+                            userId, rpcSession.getSessionId());
+                }
             }
         }
     }
@@ -263,22 +402,12 @@ public class RpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     public void afterConnectionClosed(Session rpcSession, String status) throws Exception {
         super.afterConnectionClosed(rpcSession, status);
         logger.info("After connection closed for WebSocket session: {} - Status: {}", rpcSession.getSessionId(), status);
-        String rpcSessionId = rpcSession.getSessionId();
-        if (rpcSession instanceof WebSocketServerSession) {
-            Map<String, Object> attributes =
-                    ((WebSocketServerSession) rpcSession).getWebSocketSession().getAttributes();
-            if (attributes.containsKey("userId")) {
-                String userId = (String) ((WebSocketServerSession) rpcSession)
-                        .getWebSocketSession()
-                        .getAttributes()
-                        .get("userId");
-                onlineUsers.remove(userId);
-                logger.info("afterConnectionClosed userId:" + userId);
-            }
-        }
+        // Unbinds the user too, so it can connect again right away
         RpcConnection rpc =
-                this.notificationService.closeRpcSession(rpcSessionId);
-        if (rpc != null) rpc = null;
+                this.notificationService.closeRpcSession(rpcSession.getSessionId());
+        if (rpc != null && RpcConnectionRegistry.MEDIA_USERS.equals(rpc.getUserNamespace())) {
+            presenceService.userDisconnected(rpc.getUserId());
+        }
     }
 
     @Override
@@ -0,0 +1,107 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonObject;
+import org.kurento.jsonrpc.message.Request;
+import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps JSON-RPC method names (see
+ * {@link org.ubonass.media.client.internal.ProtocolElements}) to their
+ * {@link RpcMethodHandler}. Methods are bound once when the owning handler is
+ * built, so dispatching a request is a single hash lookup.
+ * <p>
+ * The registry only checks that the mandatory parameters are present, so a
+ * request missing one is answered with a JSON-RPC error before its handler
+ * runs. Handlers still read and convert their parameters themselves (see
+ * {@link RpcHandler#getStringParam}).
+ */
+public class RpcMethodRegistry {
+
+    public static class RpcMethod {
+
+        private final String name;
+        private final RpcMethodHandler handler;
+        private final String[] requiredParams;
+
+        private RpcMethod(String name, RpcMethodHandler handler, String[] requiredParams) {
+            this.name = name;
+            this.handler = handler;
+            this.requiredParams = requiredParams;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Checks the mandatory parameters of the method and invokes its handler
+         *
+         * @throws CloudMediaException if a mandatory parameter is missing
+         */
+        public void invoke(RpcConnection rpcConnection, Request<JsonObject> request) throws Exception {
+            JsonObject params = request.getParams();
+            for (String param : requiredParams) {
+                if (params == null || params.get(param) == null) {
+                    throw new CloudMediaException(Code.TRANSPORT_REQUEST_ERROR_CODE,
+                            "Request element '" + param + "' is missing in method '" + name + "'");
+                }
+            }
+            handler.handle(rpcConnection, request);
+        }
+    }
+
+    private final ConcurrentMap<String, RpcMethod> methods = new ConcurrentHashMap<>();
+
+    /**
+     * Binds a method name to its handler
+     *
+     * @param method         method name, as defined in ProtocolElements
+     * @param handler        handler invoked for every request of this method
+     * @param requiredParams parameters that must be present in the request
+     */
+    public RpcMethodRegistry register(String method, RpcMethodHandler handler, String... requiredParams) {
+        RpcMethod oldMethod = methods.putIfAbsent(method,
+                new RpcMethod(method, handler, requiredParams.clone()));
+        if (oldMethod != null) {
+            throw new IllegalStateException("Method '" + method + "' is already registered");
+        }
+        return this;
+    }
+
+    /**
+     * @return the method bound to the given name or null if there is none
+     */
+    public RpcMethod getMethod(String method) {
+        return method != null ? methods.get(method) : null;
+    }
+
+    public boolean isRegistered(String method) {
+        return getMethod(method) != null;
+    }
+
+    public Set<String> getMethodNames() {
+        return methods.keySet();
+    }
+}
@@ -24,32 +24,110 @@ import org.kurento.jsonrpc.message.Request;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.ubonass.media.client.CloudMediaException;
+import org.ubonass.media.client.CloudMediaException.Code;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RpcNotificationService {
 
     private static final Logger log = LoggerFactory.getLogger(RpcNotificationService.class);
 
-    private ConcurrentMap<String, RpcConnection> rpcConnections = new ConcurrentHashMap<>();
+    private final RpcConnectionRegistry rpcConnections = new RpcConnectionRegistry();
+
+    private final ExecutorService outboundWriter;
+    private final RpcOutboundQueue.Metrics outboundMetrics = new RpcOutboundQueue.Metrics();
+    private final int outboundQueueCapacity;
+    private final int outboundBatchSize;
+    private final RpcOutboundQueue.OverflowPolicy overflowPolicy;
+
+    private RpcTransactionTracker transactionTracker;
+
+    private SignallingLogger signallingLogger = new SignallingLogger();
+
+    /**
+     * Messages are written to the participants by the calling thread
+     */
+    public RpcNotificationService() {
+        this.outboundWriter = null;
+        this.outboundQueueCapacity = 0;
+        this.outboundBatchSize = 1;
+        this.overflowPolicy = RpcOutboundQueue.OverflowPolicy.DROP;
+    }
+
+    /**
+     * Messages are queued per participant and written by a pool of writer
+     * threads
+     *
+     * @see RpcOutboundQueue
+     */
+    public RpcNotificationService(int queueCapacity, int batchSize,
+                                  RpcOutboundQueue.OverflowPolicy overflowPolicy, int writerThreads) {
+        final AtomicInteger counter = new AtomicInteger();
+        this.outboundWriter = Executors.newFixedThreadPool(writerThreads, r -> {
+            Thread thread = new Thread(r, "rpc-writer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.outboundQueueCapacity = queueCapacity;
+        this.outboundBatchSize = batchSize;
+        this.overflowPolicy = overflowPolicy;
+        log.info("Outbound messages queued per participant (capacity {}, batches of {}, {} writer threads)",
+                queueCapacity, batchSize, writerThreads);
+    }
 
     public RpcConnection newRpcConnection(Transaction t, Request<JsonObject> request) {
-        String participantPrivateId = t.getSession().getSessionId();
-        RpcConnection connection = new RpcConnection(t.getSession());
-        RpcConnection oldConnection = rpcConnections.putIfAbsent(participantPrivateId, connection);
-        if (oldConnection != null) {
-            log.warn("Concurrent initialization of rpcSession #{}", participantPrivateId);
-            connection = oldConnection;
+        return newRpcConnection(t.getSession());
+    }
+
+    public RpcConnection newRpcConnection(Session session) {
+        RpcConnection connection = rpcConnections.getByPrivateId(session.getSessionId());
+        if (connection != null) {
+            return connection;
+        }
+        connection = new RpcConnection(session);
+        if (outboundWriter != null) {
+            connection.setOutboundQueue(new RpcOutboundQueue(session, outboundQueueCapacity,
+                    outboundBatchSize, overflowPolicy, outboundWriter, outboundMetrics));
+        }
+        RpcConnection registered = rpcConnections.add(connection);
+        if (registered != connection) {
+            log.warn("Concurrent initialization of rpcSession #{}", session.getSessionId());
+            if (connection.getOutboundQueue() != null) {
+                connection.getOutboundQueue().close();
+            }
+        }
+        return registered;
+    }
+
+    /**
+     * Answers with an error the transactions not answered by their handlers in
+     * the given time
+     *
+     * @param timeoutMs 0 lets transactions stay open until answered
+     */
+    public void setTransactionTimeout(long timeoutMs) {
+        if (transactionTracker != null) {
+            transactionTracker.stop();
+            transactionTracker = null;
+        }
+        if (timeoutMs > 0) {
+            transactionTracker = new RpcTransactionTracker(timeoutMs, this::expireTransaction);
         }
-        return connection;
     }
 
     public RpcConnection addTransaction(Transaction t, Request<JsonObject> request) {
         String participantPrivateId = t.getSession().getSessionId();
-        RpcConnection connection = rpcConnections.get(participantPrivateId);
-        connection.addTransaction(request.getId(), t);
+        RpcConnection connection = rpcConnections.getByPrivateId(participantPrivateId);
+        if (request.getId() == null) {
+            // Notification, no response expected
+            return connection;
+        }
+        if (connection.addTransaction(request.getId(), t) && transactionTracker != null) {
+            transactionTracker.track(connection, request.getId(), t);
+        }
         return connection;
     }
 
@@ -60,11 +138,13 @@ public class RpcNotificationService {
                     transactionId, participantPrivateId, result);
             return;
         }
-        try {
-            t.sendResponse(result);
-        } catch (Exception e) {
-            log.error("Exception responding to participant ({})", participantPrivateId, e);
-        }
+        write(participantPrivateId, () -> {
+            try {
+                t.sendResponse(result);
+            } catch (Exception e) {
+                log.error("Exception responding to participant ({})", participantPrivateId, e);
+            }
+        });
     }
 
     public void sendErrorResponse(String participantPrivateId, Integer transactionId, Object data,
@@ -75,19 +155,31 @@ public class RpcNotificationService {
                     transactionId, participantPrivateId, data);
             return;
         }
-        try {
-            String dataVal = data != null ? data.toString() : null;
-            t.sendError(error.getCodeValue(), error.getMessage(), dataVal);
-        } catch (Exception e) {
-            log.error("Exception sending error response to user ({})", transactionId, e);
-        }
+        write(participantPrivateId, () -> {
+            try {
+                String dataVal = data != null ? data.toString() : null;
+                t.sendError(error.getCodeValue(), error.getMessage(), dataVal);
+            } catch (Exception e) {
+                log.error("Exception sending error response to user ({})", transactionId, e);
+            }
+        });
     }
 
     public void sendNotification(final String participantPrivateId, final String method, final Object params) {
-        RpcConnection rpcSession = rpcConnections.get(participantPrivateId);
+        signallingLogger.notification(participantPrivateId, method, params);
+        RpcConnection rpcSession = rpcConnections.getByPrivateId(participantPrivateId);
+        if (rpcSession instanceof RemoteRpcConnection) {
+            ((RemoteRpcConnection) rpcSession).forwardNotification(method, params);
+            return;
+        }
         if (rpcSession == null || rpcSession.getSession() == null) {
             log.error("No rpc session found for private id {}, unable to send notification {}: {}",
-                    participantPrivateId, method, params);
+                    participantPrivateId, method, signallingLogger.payload(params));
+            return;
+        }
+        RpcOutboundQueue queue = rpcSession.getOutboundQueue();
+        if (queue != null) {
+            queue.enqueueNotification(method, params);
             return;
         }
         Session s = rpcSession.getSession();
@@ -98,8 +190,8 @@ public class RpcNotificationService {
             else
                 s.sendNotification(method);
         } catch (Exception e) {
-            log.error("Exception sending notification '{}': {} to participant with private id {}", method, params,
-                    participantPrivateId, e);
+            log.error("Exception sending notification '{}': {} to participant with private id {}", method,
+                    signallingLogger.payload(params), participantPrivateId, e);
         }
     }
 
@@ -109,11 +201,18 @@ public class RpcNotificationService {
             log.error("No session found for private id {}, unable to cleanup", participantPrivateId);
             return null;
         }
+        if (rpcSession.getOutboundQueue() != null) {
+            rpcSession.getOutboundQueue().close();
+        }
+        for (int transactionId : rpcSession.getTransactionIds()) {
+            if (rpcSession.removeTransaction(transactionId) != null && transactionTracker != null) {
+                transactionTracker.discarded(rpcSession, transactionId);
+            }
+        }
         Session s = rpcSession.getSession();
         try {
             s.close();
             log.info("Closed session for participant with private id {}", participantPrivateId);
-            this.showRpcConnections();
             return rpcSession;
         } catch (IOException e) {
             log.error("Error closing session for participant with private id {}", participantPrivateId, e);
@@ -122,23 +221,110 @@ public class RpcNotificationService {
     }
 
     private Transaction getAndRemoveTransaction(String participantPrivateId, Integer transactionId) {
-        RpcConnection rpcSession = rpcConnections.get(participantPrivateId);
+        RpcConnection rpcSession = rpcConnections.getByPrivateId(participantPrivateId);
         if (rpcSession == null) {
             log.warn("Invalid WebSocket session id {}", participantPrivateId);
             return null;
         }
-        log.trace("#{} - {} transactions", participantPrivateId, rpcSession.getTransactions().size());
-        Transaction t = rpcSession.getTransaction(transactionId);
-        rpcSession.removeTransaction(transactionId);
+        log.trace("#{} - {} transactions", participantPrivateId, rpcSession.getNumTransactions());
+        if (transactionId == null) {
+            return null;
+        }
+        Transaction t = rpcSession.removeTransaction(transactionId);
+        if (t == null) {
+            return null;
+        }
+        if (transactionTracker != null) {
+            transactionTracker.completed(rpcSession, transactionId);
+        }
         return t;
     }
 
-    public void showRpcConnections() {
-        log.info("<PRIVATE_ID, RPC_CONNECTION>: {}", this.rpcConnections.toString());
+    private void expireTransaction(RpcConnection connection, int transactionId, Transaction transaction) {
+        write(connection.getParticipantPrivateId(), () -> {
+            try {
+                transaction.sendError(Code.TRANSPORT_RESPONSE_ERROR_CODE.getValue(),
+                        "Request not answered in time", null);
+            } catch (Exception e) {
+                log.error("Exception sending timeout of transaction {} to participant ({})",
+                        transactionId, connection.getParticipantPrivateId(), e);
+            }
+        });
+    }
+
+    /**
+     * @return open, completed and expired transactions, null if they are not
+     * tracked
+     */
+    public JsonObject getTransactionMetrics() {
+        return transactionTracker != null ? transactionTracker.toJson() : null;
+    }
+
+    /**
+     * Runs the write in the outbound queue of the participant, if it has one,
+     * so it keeps its order with the notifications
+     */
+    private void write(String participantPrivateId, Runnable write) {
+        RpcConnection rpcSession = rpcConnections.getByPrivateId(participantPrivateId);
+        RpcOutboundQueue queue = rpcSession != null ? rpcSession.getOutboundQueue() : null;
+        if (queue != null) {
+            queue.enqueueWrite(write);
+        } else {
+            write.run();
+        }
+    }
+
+    /**
+     * @return counters of the outbound queues plus their current depth
+     */
+    public JsonObject getOutboundMetrics() {
+        JsonObject json = outboundMetrics.toJson();
+        int queued = 0;
+        int maxDepth = 0;
+        for (RpcConnection connection : rpcConnections.getConnections()) {
+            RpcOutboundQueue queue = connection.getOutboundQueue();
+            if (queue != null) {
+                int depth = queue.size();
+                queued += depth;
+                maxDepth = Math.max(maxDepth, depth);
+            }
+        }
+        json.addProperty("queued", queued);
+        json.addProperty("maxQueueDepth", maxDepth);
+        return json;
+    }
+
+    public void shutdown() {
+        if (outboundWriter != null) {
+            outboundWriter.shutdown();
+        }
+        if (transactionTracker != null) {
+            transactionTracker.stop();
+        }
     }
 
     public RpcConnection getRpcConnection(String participantPrivateId) {
-        return this.rpcConnections.get(participantPrivateId);
+        return this.rpcConnections.getByPrivateId(participantPrivateId);
+    }
+
+    /**
+     * @param namespace user id index of the endpoint
+     * @return the connection of the given user, null if it is not connected
+     */
+    public RpcConnection getRpcConnectionByUserId(String namespace, String userId) {
+        return this.rpcConnections.getByUserId(namespace, userId);
+    }
+
+    public RpcConnectionRegistry getConnectionRegistry() {
+        return rpcConnections;
+    }
+
+    public SignallingLogger getSignallingLogger() {
+        return signallingLogger;
+    }
+
+    public void setSignallingLogger(SignallingLogger signallingLogger) {
+        this.signallingLogger = signallingLogger;
     }
 
 }
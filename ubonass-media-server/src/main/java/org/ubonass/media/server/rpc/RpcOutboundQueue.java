@@ -0,0 +1,316 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonObject;
+import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.internal.ws.WebSocketServerSession;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages waiting to be written to the WebSocket of one participant. Callers
+ * (RPC workers, Kurento event threads) only enqueue; a shared writer executor
+ * drains the queue, at most one thread per participant at a time so messages
+ * keep their order. Consecutive notifications can be sent as one JSON-RPC
+ * batch (a JSON array) in a single WebSocket frame, to participants that
+ * announced they accept batches.
+ */
+public class RpcOutboundQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(RpcOutboundQueue.class);
+
+    /**
+     * Messages written in a row before the writer thread is handed to other
+     * participants
+     */
+    private static final int MAX_MESSAGES_PER_DRAIN = 256;
+
+    /**
+     * What to do with a notification that does not fit in a full queue
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the notification
+         */
+        DROP,
+        /**
+         * Close the session of the slow participant
+         */
+        CLOSE;
+
+        public static OverflowPolicy fromString(String policy) {
+            return OverflowPolicy.valueOf(policy.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Counters shared by the queues of all the participants
+     */
+    public static class Metrics {
+
+        private final LongAdder enqueued = new LongAdder();
+        private final LongAdder written = new LongAdder();
+        private final LongAdder frames = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder closedSessions = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        private void written(long latency) {
+            written.increment();
+            latencyNanos.add(latency);
+            long max;
+            while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) {
+            }
+        }
+
+        public JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            long numWritten = written.sum();
+            json.addProperty("enqueued", enqueued.sum());
+            json.addProperty("written", numWritten);
+            json.addProperty("frames", frames.sum());
+            json.addProperty("dropped", dropped.sum());
+            json.addProperty("closedSessions", closedSessions.sum());
+            json.addProperty("avgLatencyMs", numWritten == 0 ? 0 : latencyNanos.sum() / numWritten / 1e6);
+            json.addProperty("maxLatencyMs", maxLatencyNanos.get() / 1e6);
+            return json;
+        }
+    }
+
+    private static class Message {
+
+        private final String method;
+        private final Object params;
+        private final Runnable write;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Message(String method, Object params, Runnable write) {
+            this.method = method;
+            this.params = params;
+            this.write = write;
+        }
+
+        private boolean isNotification() {
+            return write == null;
+        }
+    }
+
+    private final Session session;
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy overflowPolicy;
+    private final Executor writer;
+    private final Metrics metrics;
+
+    private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+    private volatile boolean batching = false;
+
+    /**
+     * @param capacity  maximum notifications waiting to be written
+     * @param batchSize maximum notifications written in one frame, 1 disables
+     *                  batching
+     */
+    public RpcOutboundQueue(Session session, int capacity, int batchSize, OverflowPolicy overflowPolicy,
+                            Executor writer, Metrics metrics) {
+        this.session = session;
+        this.capacity = capacity;
+        this.batchSize = Math.max(1, batchSize);
+        this.overflowPolicy = overflowPolicy;
+        this.writer = writer;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return false if the notification has been discarded
+     */
+    public boolean enqueueNotification(String method, Object params) {
+        if (closed) {
+            return false;
+        }
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            overflow(method);
+            return false;
+        }
+        metrics.enqueued.increment();
+        messages.offer(new Message(method, params, null));
+        schedule();
+        return true;
+    }
+
+    /**
+     * Queues a write that is not a notification (a response), so it keeps its
+     * order with the notifications. It is never discarded
+     */
+    public void enqueueWrite(Runnable write) {
+        size.incrementAndGet();
+        metrics.enqueued.increment();
+        messages.offer(new Message(null, null, write));
+        schedule();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @param batching whether the participant accepts batches, negotiated
+     *                 with its protocol version. Until then notifications are
+     *                 written one per frame
+     * @see org.ubonass.media.client.internal.ProtocolElements#BATCH_PROTOCOL_VERSION
+     */
+    public void setBatching(boolean batching) {
+        this.batching = batching;
+    }
+
+    public void close() {
+        closed = true;
+        messages.clear();
+        size.set(0);
+    }
+
+    private void overflow(String method) {
+        metrics.dropped.increment();
+        if (overflowPolicy == OverflowPolicy.CLOSE) {
+            if (!closed) {
+                log.warn("Outbound queue of session {} full ({} messages), closing slow session",
+                        session.getSessionId(), capacity);
+                close();
+                metrics.closedSessions.increment();
+                try {
+                    session.close();
+                } catch (Exception e) {
+                    log.warn("Error closing slow session {}: {}", session.getSessionId(), e.getMessage());
+                }
+            }
+        } else {
+            log.warn("Outbound queue of session {} full ({} messages), dropping notification '{}'",
+                    session.getSessionId(), capacity, method);
+        }
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                writer.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                log.warn("Outbound writer rejected session {}: {}", session.getSessionId(), e.getMessage());
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            List<Message> batch = new ArrayList<>(batchSize);
+            Message message;
+            int count = 0;
+            while (count < MAX_MESSAGES_PER_DRAIN && (message = messages.poll()) != null) {
+                size.decrementAndGet();
+                count++;
+                if (message.isNotification()) {
+                    batch.add(message);
+                    if (batch.size() >= batchSize) {
+                        flush(batch);
+                    }
+                } else {
+                    flush(batch);
+                    runWrite(message);
+                }
+            }
+            flush(batch);
+        } finally {
+            draining.set(false);
+        }
+        if (!messages.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private void runWrite(Message message) {
+        try {
+            message.write.run();
+        } catch (Exception e) {
+            log.error("Exception writing to session {}", session.getSessionId(), e);
+        }
+        metrics.frames.increment();
+        metrics.written(System.nanoTime() - message.enqueuedAt);
+    }
+
+    private void flush(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            if (batching && batch.size() > 1 && session instanceof WebSocketServerSession) {
+                sendBatch(((WebSocketServerSession) session).getWebSocketSession(), batch);
+                metrics.frames.increment();
+            } else {
+                for (Message message : batch) {
+                    if (message.params != null) {
+                        session.sendNotification(message.method, message.params);
+                    } else {
+                        session.sendNotification(message.method);
+                    }
+                    metrics.frames.increment();
+                }
+            }
+        } catch (Exception e) {
+            log.error("Exception sending {} notifications to session {}", batch.size(), session.getSessionId(), e);
+        }
+        long now = System.nanoTime();
+        for (Message message : batch) {
+            metrics.written(now - message.enqueuedAt);
+        }
+        batch.clear();
+    }
+
+    private static void sendBatch(WebSocketSession wsSession, List<Message> batch) throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (Message message : batch) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(JsonUtils.toJsonMessage(new Request<>(message.method, message.params)));
+        }
+        json.append(']');
+        // Same lock used by the Kurento session for its own writes
+        synchronized (wsSession) {
+            wsSession.sendMessage(new TextMessage(json.toString()));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs JSON-RPC requests out of the WebSocket I/O threads. Every participant
+ * has its own serial queue, so its requests run one at a time and in order,
+ * while the requests of different participants run in parallel in a shared
+ * pool of workers. A participant waiting for something only delays its own
+ * requests. Queues exist only while they have requests.
+ */
+public class RpcRequestExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(RpcRequestExecutor.class);
+
+    public enum Mode {
+        INLINE, POOLED, VIRTUAL;
+
+        public static Mode fromString(String mode) {
+            return Mode.valueOf(mode.trim().toUpperCase());
+        }
+    }
+
+    private final Mode mode;
+    private final ExecutorService workers;
+    private final int queueCapacity;
+
+    private final ConcurrentMap<String, SerialQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * @param numThreads    workers shared by all the participants in pooled
+     *                      mode. In virtual mode every request runs in its own
+     *                      virtual thread
+     * @param queueCapacity maximum requests waiting for every participant
+     */
+    public RpcRequestExecutor(Mode mode, int numThreads, int queueCapacity) {
+        if (mode != Mode.INLINE && (numThreads <= 0 || queueCapacity <= 0)) {
+            throw new IllegalArgumentException("Threads and queue capacity must be greater than 0");
+        }
+        ExecutorService workers = null;
+        if (mode == Mode.VIRTUAL) {
+            workers = virtualThreadPerTaskExecutor();
+            if (workers == null) {
+                log.warn("Virtual threads are not supported by this JVM, using platform threads for RPC requests");
+                mode = Mode.POOLED;
+            }
+        }
+        if (mode == Mode.POOLED) {
+            // At most one task per participant is waiting here, the rest wait in its queue
+            workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), platformThreadFactory());
+        }
+        this.mode = mode;
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        log.info("RPC requests executed in {} mode{}", this.mode,
+                this.mode == Mode.POOLED ? " (" + numThreads + " threads)" : "");
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isInline() {
+        return mode == Mode.INLINE;
+    }
+
+    /**
+     * Queues a task of the given participant, which runs after its previous
+     * tasks
+     *
+     * @throws RejectedExecutionException if the queue of the participant is
+     *                                    full or the executor has been shut down
+     */
+    public void execute(String participantPrivateId, Runnable task) {
+        if (isInline()) {
+            task.run();
+            return;
+        }
+        if (workers.isShutdown()) {
+            throw new RejectedExecutionException("RPC executor shut down");
+        }
+        for (; ; ) {
+            SerialQueue queue = queues.computeIfAbsent(participantPrivateId, SerialQueue::new);
+            if (queue.add(task)) {
+                return;
+            }
+            // Removed once emptied, before the task could be added
+        }
+    }
+
+    /**
+     * @return the number of requests waiting in all the queues
+     */
+    public int getQueuedRequests() {
+        return queued.get();
+    }
+
+    public void shutdown() {
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Tasks of one participant. It is scheduled in the workers while it has
+     * tasks, running one of them each time, so a participant with many tasks
+     * does not hold a worker while others wait
+     */
+    private final class SerialQueue implements Runnable {
+
+        private final String participantPrivateId;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled = false;
+        private boolean removed = false;
+
+        private SerialQueue(String participantPrivateId) {
+            this.participantPrivateId = participantPrivateId;
+        }
+
+        /**
+         * @return false if the queue was removed and a new one must be used
+         */
+        private boolean add(Runnable task) {
+            synchronized (this) {
+                if (removed) {
+                    return false;
+                }
+                if (tasks.size() >= queueCapacity) {
+                    throw new RejectedExecutionException(
+                            "Request queue of participant " + participantPrivateId + " is full");
+                }
+                tasks.add(task);
+                queued.incrementAndGet();
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    queued.addAndGet(-tasks.size());
+                    tasks.clear();
+                    scheduled = false;
+                    remove();
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            if (task != null) {
+                queued.decrementAndGet();
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("Error running request of participant {}", participantPrivateId, t);
+                }
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    remove();
+                    return;
+                }
+            }
+            try {
+                schedule();
+            } catch (RejectedExecutionException e) {
+                log.warn("Requests of participant {} dropped, RPC executor shut down", participantPrivateId);
+            }
+        }
+
+        /**
+         * Called holding the lock of the queue
+         */
+        private void remove() {
+            removed = true;
+            queues.remove(participantPrivateId, this);
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory() {
+        final AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, "rpc-worker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Obtains Executors.newThreadPerTaskExecutor(Thread.ofVirtual().factory())
+     * by reflection, as the server is built for Java 8
+     *
+     * @return the executor or null if the running JVM has no virtual threads
+     */
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, "rpc-worker-", 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory.invoke(builder));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
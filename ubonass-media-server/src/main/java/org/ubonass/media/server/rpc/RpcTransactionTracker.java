@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonObject;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import org.kurento.jsonrpc.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gives every open transaction a deadline, kept in a timer wheel shared by all
+ * the connections. Transactions still open when their deadline passes are
+ * removed from their connection and handed to the expiry handler, which
+ * answers them with an error.
+ */
+public class RpcTransactionTracker {
+
+    public interface ExpiryHandler {
+
+        /**
+         * @param transaction already removed from its connection
+         */
+        void expired(RpcConnection connection, int transactionId, Transaction transaction);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(RpcTransactionTracker.class);
+
+    private static final long TICK_MS = 100;
+
+    private final long timeoutMs;
+    private final HashedWheelTimer timer;
+    private final ExpiryHandler expiryHandler;
+
+    private final AtomicLong open = new AtomicLong();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param timeoutMs     milliseconds a transaction may stay open
+     * @param expiryHandler receives every expired transaction, already removed
+     *                      from its connection
+     */
+    public RpcTransactionTracker(long timeoutMs, ExpiryHandler expiryHandler) {
+        this.timeoutMs = timeoutMs;
+        this.expiryHandler = expiryHandler;
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "rpc-transaction-timer");
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.timer = new HashedWheelTimer(threadFactory, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The deadline is kept by the connection, the transaction is stored as is
+     */
+    public void track(final RpcConnection connection, final int transactionId, final Transaction transaction) {
+        open.incrementAndGet();
+        Timeout deadline = timer.newTimeout(t -> expire(connection, transactionId, transaction, t),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        connection.setDeadline(transactionId, deadline);
+    }
+
+    /**
+     * The transaction has been answered and removed from its connection
+     */
+    public void completed(RpcConnection connection, int transactionId) {
+        cancelDeadline(connection, transactionId);
+        open.decrementAndGet();
+        completed.increment();
+    }
+
+    /**
+     * The transaction has been removed from its connection without an answer,
+     * because the connection is closed
+     */
+    public void discarded(RpcConnection connection, int transactionId) {
+        cancelDeadline(connection, transactionId);
+        open.decrementAndGet();
+    }
+
+    private void cancelDeadline(RpcConnection connection, int transactionId) {
+        Timeout deadline = connection.removeDeadline(transactionId);
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    private void expire(RpcConnection connection, int transactionId, Transaction transaction, Timeout deadline) {
+        connection.removeDeadline(transactionId, deadline);
+        if (!connection.removeTransaction(transactionId, transaction)) {
+            // Answered in the meantime
+            return;
+        }
+        open.decrementAndGet();
+        expired.increment();
+        log.warn("Transaction {} of participant {} not answered in {} ms, expired", transactionId,
+                connection.getParticipantPrivateId(), timeoutMs);
+        try {
+            expiryHandler.expired(connection, transactionId, transaction);
+        } catch (Exception e) {
+            log.error("Error expiring transaction {} of participant {}", transactionId,
+                    connection.getParticipantPrivateId(), e);
+        }
+    }
+
+    public long getOpen() {
+        return open.get();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("open", getOpen());
+        json.addProperty("completed", getCompleted());
+        json.addProperty("expired", getExpired());
+        json.addProperty("timeoutMs", timeoutMs);
+        return json;
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.kurento.jsonrpc.message.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log of the signalling messages exchanged with the participants, written to
+ * the "org.ubonass.media.server.signalling" logger at DEBUG level.
+ * <p>
+ * Only one of every N messages of a method is logged, N being the sample rate
+ * of the method. The payload is rendered only when the message is actually
+ * written, and SDP bodies are replaced by their length.
+ */
+public class SignallingLogger {
+
+    private static final Logger log = LoggerFactory.getLogger("org.ubonass.media.server.signalling");
+
+    private static final String SDP_PREFIX = "v=0";
+
+    private final int defaultSampleRate;
+    private final Map<String, Integer> sampleRates;
+    private final boolean redactSdp;
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final LongAdder logged = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @param defaultSampleRate one of every N messages logged, for the methods
+     *                          without their own rate. 0 logs none
+     * @param sampleRates       sample rate by method
+     * @param redactSdp         replace SDP offers and answers by their length
+     */
+    public SignallingLogger(int defaultSampleRate, Map<String, Integer> sampleRates, boolean redactSdp) {
+        this.defaultSampleRate = defaultSampleRate;
+        this.sampleRates = sampleRates != null ? new HashMap<>(sampleRates) : Collections.emptyMap();
+        this.redactSdp = redactSdp;
+    }
+
+    /**
+     * Logs every message, without redaction
+     */
+    public SignallingLogger() {
+        this(1, null, false);
+    }
+
+    public boolean isEnabled() {
+        return log.isDebugEnabled();
+    }
+
+    public void request(String participantPrivateId, Request<JsonObject> request) {
+        if (isEnabled() && sample(request.getMethod())) {
+            log.debug("#{} <- {} (id {}): {}", participantPrivateId, request.getMethod(), request.getId(),
+                    payload(request.getParams()));
+        }
+    }
+
+    public void notification(String participantPrivateId, String method, Object params) {
+        if (isEnabled() && sample(method)) {
+            log.debug("#{} -> {}: {}", participantPrivateId, method, payload(params));
+        }
+    }
+
+    /**
+     * @return the payload, rendered with SDP redaction only when its
+     * toString is called
+     */
+    public Object payload(Object payload) {
+        if (payload == null) {
+            return null;
+        }
+        return new Object() {
+            @Override
+            public String toString() {
+                return render(payload);
+            }
+        };
+    }
+
+    private String render(Object payload) {
+        if (redactSdp && payload instanceof JsonElement) {
+            return redact((JsonElement) payload).toString();
+        }
+        return payload.toString();
+    }
+
+    private boolean sample(String method) {
+        int rate = sampleRates.getOrDefault(method, defaultSampleRate);
+        if (rate == 1) {
+            logged.increment();
+            return true;
+        }
+        if (rate > 1 && counters.computeIfAbsent(method, m -> new AtomicLong())
+                .getAndIncrement() % rate == 0) {
+            logged.increment();
+            return true;
+        }
+        skipped.increment();
+        return false;
+    }
+
+    /**
+     * @return a copy of the element where every SDP body is replaced by its
+     * length. The element is returned as is when it holds no SDP
+     */
+    static JsonElement redact(JsonElement element) {
+        if (element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isString() && primitive.getAsString().startsWith(SDP_PREFIX)) {
+                return new JsonPrimitive("<sdp " + primitive.getAsString().length() + " chars>");
+            }
+            return element;
+        }
+        if (element.isJsonObject()) {
+            JsonObject copy = null;
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                JsonElement value = redact(entry.getValue());
+                if (value != entry.getValue() && copy == null) {
+                    copy = new JsonObject();
+                    for (Map.Entry<String, JsonElement> e : element.getAsJsonObject().entrySet()) {
+                        copy.add(e.getKey(), e.getValue());
+                    }
+                }
+                if (copy != null) {
+                    copy.add(entry.getKey(), value);
+                }
+            }
+            return copy != null ? copy : element;
+        }
+        if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            JsonArray copy = null;
+            for (int i = 0; i < array.size(); i++) {
+                JsonElement value = redact(array.get(i));
+                if (value != array.get(i) && copy == null) {
+                    copy = new JsonArray();
+                    for (int j = 0; j < i; j++) {
+                        copy.add(array.get(j));
+                    }
+                }
+                if (copy != null) {
+                    copy.add(value);
+                }
+            }
+            return copy != null ? copy : element;
+        }
+        return element;
+    }
+
+    /**
+     * @return messages logged and skipped by the sampling
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("enabled", isEnabled());
+        json.addProperty("defaultSampleRate", defaultSampleRate);
+        JsonObject rates = new JsonObject();
+        sampleRates.forEach(rates::addProperty);
+        json.add("sampleRates", rates);
+        json.addProperty("redactSdp", redactSdp);
+        json.addProperty("logged", logged.sum());
+        json.addProperty("skipped", skipped.sum());
+        return json;
+    }
+}
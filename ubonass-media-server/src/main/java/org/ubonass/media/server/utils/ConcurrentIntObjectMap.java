@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thread-safe map from primitive int keys to objects, meant for small tables
+ * with a lot of churn and little contention, like the transactions of one
+ * connection. Keys are never boxed: entries live in two parallel arrays with
+ * open addressing and linear probing, and removals shift the following entries
+ * back instead of leaving tombstones. Null values are not allowed.
+ */
+public class ConcurrentIntObjectMap<V> {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private int[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public ConcurrentIntObjectMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize entries the map holds without resizing
+     */
+    public ConcurrentIntObjectMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized V get(int key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * @return the value already mapped to the key, in which case the map is
+     * not modified, or null if the new value has been added
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V putIfAbsent(int key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not allowed");
+        }
+        int mask = values.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > values.length) {
+            resize(values.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the key and returns it in one atomic operation
+     *
+     * @return the removed value, null if the key was not mapped
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        V value = (V) values[i];
+        delete(i);
+        return value;
+    }
+
+    /**
+     * Removes the mapping of the key only if it is mapped to the given value
+     * (compared by identity)
+     */
+    public synchronized boolean remove(int key, Object value) {
+        int i = indexOf(key);
+        if (i < 0 || values[i] != value) {
+            return false;
+        }
+        delete(i);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a snapshot of the keys
+     */
+    public synchronized int[] keys() {
+        int[] list = new int[size];
+        int n = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                list[n++] = keys[i];
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return a snapshot of the values
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> values() {
+        List<V> list = new ArrayList<>(size);
+        for (Object value : values) {
+            if (value != null) {
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+
+    private int indexOf(int key) {
+        int mask = values.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empties the slot and moves back the entries of the same probe sequence
+     * placed after it, so lookups never stop at a hole
+     */
+    private void delete(int i) {
+        int mask = values.length - 1;
+        values[i] = null;
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                return;
+            }
+            int home = hash(keys[j]) & mask;
+            // The entry at j can fill the hole at i unless its home slot lies
+            // cyclically in (i, j]
+            boolean inRange = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!inRange) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                values[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int k = 0; k < oldValues.length; k++) {
+            if (oldValues[k] != null) {
+                int i = hash(oldKeys[k]) & mask;
+                while (values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[k];
+                values[i] = oldValues[k];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.ubonass.media.server.call.UserRpcConnection;
+import org.ubonass.media.server.cluster.InMemoryUserLocationRegistry;
+import org.ubonass.media.server.cluster.NamespacedUserLocationRegistry;
+import org.ubonass.media.server.cluster.UserLocationRegistry;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RpcConnectionRegistryTest {
+
+    private final RpcConnectionRegistry registry = new RpcConnectionRegistry();
+
+    @Test
+    public void sameUserConnectsToBothEndpoints() {
+        RpcConnection media = registry.add(new RpcConnection(session("media-session")));
+        UserRpcConnection call = new UserRpcConnection(registry.add(new RpcConnection(session("call-session"))),
+                "alice");
+
+        assertTrue(registry.bindUser(RpcConnectionRegistry.MEDIA_USERS, "alice", media));
+        assertTrue(registry.bindUser(RpcConnectionRegistry.CALL_USERS, "alice", call));
+        assertSame(media, registry.getByUserId(RpcConnectionRegistry.MEDIA_USERS, "alice"));
+        assertSame(call, registry.getByUserId(RpcConnectionRegistry.CALL_USERS, "alice"));
+        assertSame(call, registry.getByPrivateId("call-session"));
+        assertEquals(2, registry.getNumUsers());
+
+        // Closing one connection leaves the other bound
+        registry.remove("media-session");
+        assertNull(registry.getByUserId(RpcConnectionRegistry.MEDIA_USERS, "alice"));
+        assertSame(call, registry.getByUserId(RpcConnectionRegistry.CALL_USERS, "alice"));
+    }
+
+    @Test
+    public void userIdIsUniqueWithinAnEndpoint() {
+        RpcConnection first = registry.add(new RpcConnection(session("first")));
+        RpcConnection second = registry.add(new RpcConnection(session("second")));
+
+        assertTrue(registry.bindUser(RpcConnectionRegistry.CALL_USERS, "bob", first));
+        assertFalse(registry.bindUser(RpcConnectionRegistry.CALL_USERS, "bob", second));
+
+        // A connection closed without being unbound is taken over
+        registry.remove("first");
+        RpcConnection third = registry.add(new RpcConnection(session("third")));
+        assertTrue(registry.bindUser(RpcConnectionRegistry.CALL_USERS, "bob", third));
+        assertSame(third, registry.getByUserId(RpcConnectionRegistry.CALL_USERS, "bob"));
+    }
+
+    @Test
+    public void locationsOfBothEndpointsAreKeptApart() {
+        UserLocationRegistry locations = new InMemoryUserLocationRegistry();
+        UserLocationRegistry mediaLocations = new NamespacedUserLocationRegistry(locations,
+                RpcConnectionRegistry.MEDIA_USERS);
+
+        assertTrue(locations.register("alice", "node-1"));
+        assertTrue(mediaLocations.register("alice", "node-2"));
+        assertEquals("node-1", locations.locate("alice"));
+        assertEquals("node-2", mediaLocations.locate("alice"));
+        assertEquals("node-2", mediaLocations.locateAll(Collections.singleton("alice")).get("alice"));
+
+        mediaLocations.unregister("alice", "node-2");
+        assertNull(mediaLocations.locate("alice"));
+        assertEquals("node-1", locations.locate("alice"));
+    }
+
+    private static Session session(String sessionId) {
+        Session session = mock(Session.class);
+        when(session.getSessionId()).thenReturn(sessionId);
+        return session;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.rpc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+import org.mockito.ArgumentCaptor;
+import org.ubonass.media.client.internal.ProtocolElements;
+import org.ubonass.media.server.cluster.InMemoryUserLocationRegistry;
+import org.ubonass.media.server.cluster.LoopbackClusterChannel;
+import org.ubonass.media.server.cluster.PresenceService;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RpcHandlerTest {
+
+    private RpcNotificationService notificationService;
+    private RpcHandler handler;
+    private Session callerSession;
+    private Session targetSession;
+
+    @Before
+    public void setUp() throws Exception {
+        notificationService = new RpcNotificationService();
+        PresenceService presenceService = new PresenceService(new LoopbackClusterChannel("node-1"),
+                new InMemoryUserLocationRegistry(), notificationService, 1000);
+        handler = new RpcHandler();
+        inject(handler, "notificationService", notificationService);
+        inject(handler, "presenceService", presenceService);
+        inject(handler, "requestExecutor", new RpcRequestExecutor(RpcRequestExecutor.Mode.INLINE, 0, 0));
+
+        callerSession = session("caller-session");
+        targetSession = session("target-session");
+        RpcConnection target = notificationService.newRpcConnection(targetSession);
+        notificationService.getConnectionRegistry().bindUser(RpcConnectionRegistry.MEDIA_USERS, "bob", target);
+    }
+
+    @Test
+    public void invitedNotifiesOnlineTargetsThroughHandleRequest() throws Exception {
+        handler.handleRequest(transaction(callerSession), request(1, ProtocolElements.KEEPLIVE_METHOD,
+                new JsonObject()));
+
+        JsonObject params = new JsonObject();
+        params.addProperty(ProtocolElements.INVITED_USER_PARAM, "alice");
+        params.addProperty(ProtocolElements.INVITED_NUMBER_PARAM, 2);
+        JsonArray targets = new JsonArray();
+        targets.add("bob");
+        targets.add("carol");
+        params.add(ProtocolElements.INVITED_TARGETS_PARAM, targets);
+        params.addProperty(ProtocolElements.INVITED_TYPEMEDIA_PARAM, "video");
+        Transaction invited = transaction(callerSession);
+        handler.handleRequest(invited, request(2, ProtocolElements.INVITED_METHOD, params));
+
+        ArgumentCaptor<Object> notification = ArgumentCaptor.forClass(Object.class);
+        verify(targetSession).sendNotification(eq(ProtocolElements.ONINVITED_METHOD), notification.capture());
+        JsonObject onInvited = (JsonObject) notification.getValue();
+        assertEquals("alice", onInvited.get(ProtocolElements.ONINVITED_FROMUSER_PARAM).getAsString());
+        assertEquals("bob", onInvited.get(ProtocolElements.ONINVITED_TARGETUSER_PARAM).getAsString());
+
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(invited).sendResponse(response.capture());
+        JsonArray states = ((JsonObject) response.getValue())
+                .getAsJsonArray(ProtocolElements.INVITED_TARGETS_PARAM);
+        assertEquals("online", states.get(0).getAsJsonObject()
+                .get(ProtocolElements.INVITED_TARGETS_STATE_PARAM).getAsString());
+        assertEquals("offline", states.get(1).getAsJsonObject()
+                .get(ProtocolElements.INVITED_TARGETS_STATE_PARAM).getAsString());
+    }
+
+    @Test
+    public void invitedWithMissingParamIsAnsweredWithError() throws Exception {
+        handler.handleRequest(transaction(callerSession), request(1, ProtocolElements.KEEPLIVE_METHOD,
+                new JsonObject()));
+
+        JsonObject params = new JsonObject();
+        params.addProperty(ProtocolElements.INVITED_USER_PARAM, "alice");
+        Transaction invited = transaction(callerSession);
+        handler.handleRequest(invited, request(2, ProtocolElements.INVITED_METHOD, params));
+
+        verify(invited).sendError(anyInt(), anyString(), any(String.class));
+        verify(targetSession, never()).sendNotification(anyString(), any());
+    }
+
+    @Test
+    public void onInvitedIsAcknowledged() throws Exception {
+        handler.handleRequest(transaction(callerSession), request(1, ProtocolElements.KEEPLIVE_METHOD,
+                new JsonObject()));
+
+        JsonObject params = new JsonObject();
+        params.addProperty(ProtocolElements.ONINVITED_TARGETUSER_PARAM, "bob");
+        params.addProperty(ProtocolElements.ONINVITED_FROMUSER_PARAM, "alice");
+        params.addProperty(ProtocolElements.ONINVITED_TYPEEVENT_PARAM, ProtocolElements.ONINVITED_EVENT_ACCEPT);
+        Transaction onInvited = transaction(callerSession);
+        handler.handleRequest(onInvited, request(2, ProtocolElements.ONINVITED_METHOD, params));
+
+        verify(targetSession).sendNotification(eq(ProtocolElements.ONINVITED_METHOD), any());
+        verify(onInvited).sendResponse(any());
+        assertEquals(0, notificationService.getRpcConnection("caller-session").getNumTransactions());
+    }
+
+    @Test
+    public void keepLiveIdentifiesUserAndNegotiatesProtocolVersion() throws Exception {
+        JsonObject params = new JsonObject();
+        params.addProperty(ProtocolElements.KEEPLIVE_USERID_PARAM, "alice");
+        params.addProperty(ProtocolElements.KEEPLIVE_PROTOCOLVERSION_PARAM, ProtocolElements.PROTOCOL_VERSION);
+        Transaction keepLive = transaction(callerSession);
+        handler.handleRequest(keepLive, request(1, ProtocolElements.KEEPLIVE_METHOD, params));
+
+        ArgumentCaptor<Object> response = ArgumentCaptor.forClass(Object.class);
+        verify(keepLive).sendResponse(response.capture());
+        assertEquals(ProtocolElements.PROTOCOL_VERSION, ((JsonObject) response.getValue())
+                .get(ProtocolElements.KEEPLIVE_PROTOCOLVERSION_PARAM).getAsInt());
+        RpcConnection connection = notificationService.getRpcConnectionByUserId(RpcConnectionRegistry.MEDIA_USERS, "alice");
+        assertEquals("caller-session", connection.getParticipantPrivateId());
+        assertEquals(ProtocolElements.PROTOCOL_VERSION, connection.getProtocolVersion());
+
+        // Targets sent as a string are answered as an array from version 2
+        JsonObject invitedParams = new JsonObject();
+        invitedParams.addProperty(ProtocolElements.INVITED_USER_PARAM, "alice");
+        invitedParams.addProperty(ProtocolElements.INVITED_NUMBER_PARAM, 1);
+        invitedParams.addProperty(ProtocolElements.INVITED_TARGETS_PARAM, "[\"bob\"]");
+        invitedParams.addProperty(ProtocolElements.INVITED_TYPEMEDIA_PARAM, "audio");
+        Transaction invited = transaction(callerSession);
+        handler.handleRequest(invited, request(2, ProtocolElements.INVITED_METHOD, invitedParams));
+
+        verify(invited).sendResponse(response.capture());
+        assertTrue(((JsonObject) response.getValue()).get(ProtocolElements.INVITED_TARGETS_PARAM).isJsonArray());
+    }
+
+    private static Session session(String sessionId) {
+        Session session = mock(Session.class);
+        when(session.getSessionId()).thenReturn(sessionId);
+        return session;
+    }
+
+    private static Transaction transaction(Session session) {
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getSession()).thenReturn(session);
+        return transaction;
+    }
+
+    private static Request<JsonObject> request(int id, String method, JsonObject params) {
+        Request<JsonObject> request = new Request<>(method, params);
+        request.setId(id);
+        return request;
+    }
+
+    private static void inject(Object target, String name, Object value) throws Exception {
+        Field field = RpcHandler.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
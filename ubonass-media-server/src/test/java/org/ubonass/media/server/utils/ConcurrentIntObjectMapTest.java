@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2017-2019 OpenVidu (https://openvidu.io/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.ubonass.media.server.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentIntObjectMapTest {
+
+    @Test
+    public void behavesAsHashMap() {
+        // Small key ranges collide and wrap around the table, large ones make it grow
+        for (int keyRange : new int[]{16, 64, 1000, Integer.MAX_VALUE}) {
+            Random random = new Random(keyRange);
+            ConcurrentIntObjectMap<String> map = new ConcurrentIntObjectMap<>();
+            Map<Integer, String> expected = new HashMap<>();
+            for (int op = 0; op < 200000; op++) {
+                int key = random.nextInt(keyRange) - (keyRange == Integer.MAX_VALUE ? keyRange / 2 : 0);
+                String value = "v" + op;
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1:
+                        assertEquals(expected.putIfAbsent(key, value), map.putIfAbsent(key, value));
+                        break;
+                    case 2:
+                        assertEquals(expected.remove(key), map.remove(key));
+                        break;
+                    default:
+                        String current = expected.get(key);
+                        // A different instance with the same content is not removed
+                        Object other = random.nextBoolean() ? current : "v" + op;
+                        boolean removed = map.remove(key, other);
+                        assertEquals(current != null && current == other, removed);
+                        if (removed) {
+                            expected.remove(key);
+                        }
+                }
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.size(), map.size());
+            }
+            for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+                assertSame(entry.getValue(), map.get(entry.getKey()));
+            }
+            List<String> values = new ArrayList<>(map.values());
+            List<String> expectedValues = new ArrayList<>(expected.values());
+            values.sort(null);
+            expectedValues.sort(null);
+            assertEquals(expectedValues, values);
+            int[] keys = map.keys();
+            Arrays.sort(keys);
+            assertTrue(Arrays.equals(expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray(),
+                    keys));
+        }
+    }
+
+    @Test
+    public void emptiedMapIsReusable() {
+        ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>(2);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                assertNull(map.putIfAbsent(i, i));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Integer.valueOf(i), map.remove(i));
+            }
+            assertTrue(map.isEmpty());
+            assertNull(map.get(0));
+        }
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void nullValuesAreRejected() {
+        new ConcurrentIntObjectMap<String>().putIfAbsent(1, null);
+    }
+
+    @Test
+    public void concurrentWritersOfDifferentKeys() throws Exception {
+        final ConcurrentIntObjectMap<Integer> map = new ConcurrentIntObjectMap<>();
+        final int threads = 8;
+        final int keysPerThread = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * keysPerThread;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = base; i < base + keysPerThread; i++) {
+                        assertNull(map.putIfAbsent(i, i));
+                    }
+                    // Odd keys are removed again
+                    for (int i = base + 1; i < base + keysPerThread; i += 2) {
+                        assertEquals(Integer.valueOf(i), map.remove(i));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertNull(failure.get());
+        assertEquals(threads * keysPerThread / 2, map.size());
+        for (int i = 0; i < threads * keysPerThread; i++) {
+            if (i % 2 == 0) {
+                assertEquals(Integer.valueOf(i), map.get(i));
+            } else {
+                assertFalse(map.remove(i, i));
+            }
+        }
+    }
+}